@@ -254,6 +254,36 @@ public class AutoGrader {
         public void finishingMachine() {
 	}
 
+	/**
+	 * Notify the autograder that the kernel has read pages of a COFF file
+	 * into memory. They are counted in <tt>Stats.numCOFFReads</tt>.
+	 * 
+	 * @param numPages the number of pages read.
+	 */
+	public void coffPagesRead(int numPages) {
+		privilege.stats.numCOFFReads += numPages;
+	}
+
+	/**
+	 * Notify the autograder that the kernel has read pages from swap. They
+	 * are counted in <tt>Stats.numSwapReads</tt>.
+	 * 
+	 * @param numPages the number of pages read.
+	 */
+	public void swapPagesRead(int numPages) {
+		privilege.stats.numSwapReads += numPages;
+	}
+
+	/**
+	 * Notify the autograder that the kernel has written pages to swap. They
+	 * are counted in <tt>Stats.numSwapWrites</tt>.
+	 * 
+	 * @param numPages the number of pages written.
+	 */
+	public void swapPagesWritten(int numPages) {
+		privilege.stats.numSwapWrites += numPages;
+	}
+
 	/**
 	 * Request permission to send a packet. The autograder can use this to drop
 	 * packets very selectively.
@@ -6,7 +6,7 @@ import nachos.security.*;
 
 import java.util.TreeSet;
 import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +52,8 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		overflow = new TreeSet<PendingInterrupt>();
+		tracing = Lib.test(dbgInt);
 	}
 
 	/**
@@ -128,7 +129,25 @@ public final class Interrupt {
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (ringSize == 0)
+			ringBase = privilege.stats.totalTicks >> bucketShift;
+
+		if ((time >> bucketShift) - ringBase < numBuckets)
+			addToRing(toOccur);
+		else
+			overflow.add(toOccur);
+
+		if (time < nextDue)
+			nextDue = time;
+	}
+
+	/**
+	 * Ask for an interrupt on behalf of a non-Nachos thread. The request is
+	 * picked up the next time pending interrupts are handled, and the
+	 * interrupt occurs one tick after that.
+	 */
+	private void scheduleFromHost(String type, Runnable handler) {
+		hostRequests.add(new HostRequest(type, handler));
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -143,34 +162,53 @@ public final class Interrupt {
 			stats.totalTicks += Stats.UserTick;
 		}
 
-		if (Lib.test(dbgInt))
+		if (tracing)
 			System.out.println("== Tick " + stats.totalTicks + " ==");
+		else if (stats.totalTicks < nextDue)
+			return;
 
 		enabled = false;
 		checkIfDue();
 		enabled = true;
 	}
 
+	private void tickUser(int numInstructions) {
+		Lib.assertTrue(numInstructions > 0);
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += (long) Stats.UserTick * numInstructions;
+		stats.totalTicks += (long) Stats.UserTick * numInstructions;
+
+		if (tracing)
+			System.out.println("== Tick " + stats.totalTicks + " ==");
+		else if (stats.totalTicks < nextDue)
+			return;
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	private long nextDueTime() {
+		return nextDue;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
 		Lib.assertTrue(disabled());
 
-		if (Lib.test(dbgInt))
+		if (tracing)
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDue > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (nextDue <= time) {
+			PendingInterrupt next = removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
@@ -183,6 +221,87 @@ public final class Interrupt {
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
+
+		HostRequest request;
+		while ((request = hostRequests.poll()) != null)
+			schedule(1, request.type, request.handler);
+	}
+
+	/**
+	 * Insert a pending interrupt into its bucket of the ring, keeping each
+	 * bucket sorted.
+	 */
+	private void addToRing(PendingInterrupt toOccur) {
+		int bucket = (int) (toOccur.time >> bucketShift) & (numBuckets - 1);
+
+		PendingInterrupt prev = null, p = buckets[bucket];
+		while (p != null && p.compareTo(toOccur) < 0) {
+			prev = p;
+			p = p.next;
+		}
+
+		toOccur.next = p;
+		if (prev == null)
+			buckets[bucket] = toOccur;
+		else
+			prev.next = toOccur;
+
+		occupied[bucket >> 6] |= 1L << bucket;
+		ringSize++;
+
+		if (ringFirst == null || toOccur.compareTo(ringFirst) < 0)
+			ringFirst = toOccur;
+	}
+
+	/**
+	 * Remove and return the earliest pending interrupt, and update
+	 * <tt>nextDue</tt>.
+	 */
+	private PendingInterrupt removeFirst() {
+		PendingInterrupt first;
+
+		if (ringFirst != null
+				&& (overflow.isEmpty()
+						|| ringFirst.compareTo(overflow.first()) < 0)) {
+			first = ringFirst;
+
+			int bucket = (int) (first.time >> bucketShift) & (numBuckets - 1);
+			buckets[bucket] = first.next;
+			first.next = null;
+			if (buckets[bucket] == null)
+				occupied[bucket >> 6] &= ~(1L << bucket);
+
+			ringBase = first.time >> bucketShift;
+			ringSize--;
+			ringFirst = (ringSize == 0) ? null : buckets[nextOccupied(bucket)];
+		}
+		else {
+			first = overflow.pollFirst();
+		}
+
+		nextDue = Long.MAX_VALUE;
+		if (ringFirst != null)
+			nextDue = ringFirst.time;
+		if (!overflow.isEmpty() && overflow.first().time < nextDue)
+			nextDue = overflow.first().time;
+
+		return first;
+	}
+
+	/**
+	 * Return the first non-empty bucket at or after <i>bucket</i>, wrapping
+	 * around the ring. The ring must not be empty.
+	 */
+	private int nextOccupied(int bucket) {
+		int word = bucket >> 6;
+		long bits = occupied[word] & (-1L << bucket);
+
+		while (bits == 0) {
+			word = (word + 1) % occupied.length;
+			bits = occupied[word];
+		}
+
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
 	}
 
 	private void print() {
@@ -190,6 +309,13 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
+		TreeSet<PendingInterrupt> pending = new TreeSet<PendingInterrupt>(
+				overflow);
+		for (int i = 0; i < numBuckets; i++) {
+			for (PendingInterrupt p = buckets[i]; p != null; p = p.next)
+				pending.add(p);
+		}
+
 		for (Iterator i = pending.iterator(); i.hasNext();) {
 			PendingInterrupt toOccur = (PendingInterrupt) i.next();
 			System.out.println("  " + toOccur.type + ", scheduled at "
@@ -229,16 +355,64 @@ public final class Interrupt {
 
 		Runnable handler;
 
+		/** The next interrupt in the same bucket of the ring. */
+		PendingInterrupt next;
+
 		private long id;
 	}
 
+	private static class HostRequest {
+		HostRequest(String type, Runnable handler) {
+			this.type = type;
+			this.handler = handler;
+		}
+
+		String type;
+
+		Runnable handler;
+	}
+
 	private long numPendingInterruptsCreated = 0;
 
+	/** Requests made by <tt>scheduleFromHost()</tt> not yet scheduled. */
+	private ConcurrentLinkedQueue<HostRequest> hostRequests = new ConcurrentLinkedQueue<HostRequest>();
+
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * Pending interrupts are kept in a calendar queue: a ring of buckets, each
+	 * covering <tt>1 << bucketShift</tt> ticks, for interrupts due within
+	 * <tt>numBuckets</tt> buckets of <tt>ringBase</tt>, which covers the delays
+	 * the devices use. Anything due later goes in <tt>overflow</tt>.
+	 */
+	private static final int bucketShift = 4;
+
+	private static final int numBuckets = 256;
+
+	private PendingInterrupt[] buckets = new PendingInterrupt[numBuckets];
+
+	/** A bit for each non-empty bucket. */
+	private long[] occupied = new long[numBuckets / 64];
+
+	/** The bucket number that no interrupt in the ring is earlier than. */
+	private long ringBase;
+
+	private int ringSize = 0;
+
+	/** The earliest interrupt in the ring, or <tt>null</tt> if it is empty. */
+	private PendingInterrupt ringFirst = null;
+
+	private TreeSet<PendingInterrupt> overflow;
+
+	/**
+	 * The time of the earliest pending interrupt, so that <tt>tick()</tt>
+	 * usually only has to compare it against the current time.
+	 */
+	private long nextDue = Long.MAX_VALUE;
+
+	private boolean tracing;
 
 	private static final char dbgInt = 'i';
 
@@ -247,8 +421,20 @@ public final class Interrupt {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public void scheduleFromHost(String type, Runnable handler) {
+			Interrupt.this.scheduleFromHost(type, handler);
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tickUser(int numInstructions) {
+			Interrupt.this.tickUser(numInstructions);
+		}
+
+		public long nextDueTime() {
+			return Interrupt.this.nextDueTime();
+		}
 	}
 }
@@ -40,14 +40,46 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		usingBlocks = Config.getBoolean("Processor.blockExecution", false);
+		batchingTicks = Config.getBoolean("Processor.batchTicks", true);
+
+		// debug flags are fixed once the machine is running
+		tracing = Lib.test(dbgProcessor);
+		compileThreshold = Config.getInteger("Processor.compileThreshold", 50);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedInstructions = new Decoded[mainMemory.length / 4];
+
+		if (usingBlocks)
+			basicBlocks = new BasicBlock[mainMemory.length / 4];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0,
+					"TLB size must be a multiple of its associativity");
+			tlbSets = tlbSize / tlbWays;
+
+			String replacement = Config.getString("Processor.tlbReplacement",
+					"random");
+			if (replacement.equalsIgnoreCase("random"))
+				tlbReplacement = replaceRandom;
+			else if (replacement.equalsIgnoreCase("fifo"))
+				tlbReplacement = replaceFIFO;
+			else if (replacement.equalsIgnoreCase("lru"))
+				tlbReplacement = replaceLRU;
+			else
+				Lib.assertNotReached("unknown TLB replacement policy: "
+						+ replacement);
+
+			tlbLastUsed = new long[tlbSize];
+			tlbNextVictim = new int[tlbSets];
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -83,6 +115,16 @@ public final class Processor {
 
 	/**
 	 * Start executing instructions at the current PC. Never returns.
+	 * 
+	 * <p>
+	 * If <tt>Processor.blockExecution</tt> is set, and no processor debugging
+	 * flags are enabled, instructions are executed a basic block at a time and
+	 * the elapsed time is charged once per block. Blocks never run past the
+	 * next pending interrupt, so the simulated timing is exactly that of
+	 * executing one instruction at a time. A block that has been entered
+	 * <tt>Processor.compileThreshold</tt> times is compiled into a sequence
+	 * of operations with their operands already resolved (a threshold of 0
+	 * disables compilation).
 	 */
 	public void run() {
 		Lib.debug(dbgProcessor, "starting program in current thread");
@@ -93,6 +135,51 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		if (usingBlocks && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble)) {
+			while (true) {
+				try {
+					inst.runBlock(blockBudget());
+				}
+				catch (MipsException e) {
+					// charge the instructions that completed before the
+					// exception, then the faulting one after it is handled
+					if (inst.blockCount > 0)
+						privilege.interrupt.tickUser(inst.blockCount);
+
+					e.handle();
+
+					inst.blockCount = 1;
+				}
+
+				privilege.interrupt.tickUser(inst.blockCount);
+			}
+		}
+
+		if (batchingTicks && !Lib.test(dbgInterrupt)) {
+			while (true) {
+				int budget = blockBudget();
+				int count = 0;
+
+				try {
+					// no interrupt can fall due before the budget runs out
+					do {
+						inst.run();
+					} while (++count < budget);
+				}
+				catch (MipsException e) {
+					if (count > 0)
+						privilege.interrupt.tickUser(count);
+
+					e.handle();
+
+					count = 1;
+				}
+
+				privilege.interrupt.tickUser(count);
+			}
+		}
+
 		while (true) {
 			try {
 				inst.run();
@@ -175,6 +262,9 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		fetchTLB.flush();
+		dataTLB.flush();
 	}
 
 	/**
@@ -188,6 +278,21 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided into
+	 * <tt>getTLBSize() / getTLBAssociativity()</tt> sets of this many entries;
+	 * a page may only be cached in the set numbered <tt>vpn</tt> modulo the
+	 * number of sets, which occupies entries
+	 * <tt>set * getTLBAssociativity()</tt> onward.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +310,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * If the TLB is fully associative (the default), the location of an entry
+	 * within the TLB does not affect anything. Otherwise a valid entry must be
+	 * written to the set its virtual page maps to; see
+	 * <tt>getTLBAssociativity()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -214,8 +321,85 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid
+				|| number / tlbWays == tlbSet(entry.vpn));
 
 		translations[number] = new TranslationEntry(entry);
+		tlbLastUsed[number] = ++tlbClock;
+
+		fetchTLB.flush();
+		dataTLB.flush();
+	}
+
+	/**
+	 * Fill a TLB entry chosen by the processor. An invalid entry in the set
+	 * that <tt>entry.vpn</tt> maps to is used if there is one; otherwise the
+	 * victim is chosen by the <tt>Processor.tlbReplacement</tt> policy
+	 * (<tt>random</tt>, <tt>fifo</tt> or <tt>lru</tt>).
+	 * 
+	 * @param entry the new contents of the TLB entry.
+	 * @return the previous contents of the replaced entry, so that its used
+	 * and dirty bits can be saved.
+	 */
+	public TranslationEntry writeTLBEntry(TranslationEntry entry) {
+		Lib.assertTrue(usingTLB);
+
+		int set = tlbSet(entry.vpn);
+		int first = set * tlbWays;
+		int number = -1;
+
+		for (int i = first; i < first + tlbWays; i++) {
+			if (!translations[i].valid) {
+				number = i;
+				break;
+			}
+		}
+
+		if (number == -1) {
+			switch (tlbReplacement) {
+			case replaceRandom:
+				number = first + Lib.random(tlbWays);
+				break;
+			case replaceFIFO:
+				number = first + tlbNextVictim[set];
+				tlbNextVictim[set] = (tlbNextVictim[set] + 1) % tlbWays;
+				break;
+			case replaceLRU:
+				number = first;
+				for (int i = first + 1; i < first + tlbWays; i++) {
+					if (tlbLastUsed[i] < tlbLastUsed[number])
+						number = i;
+				}
+				break;
+			}
+		}
+
+		TranslationEntry replaced = translations[number];
+
+		writeTLBEntry(number, entry);
+
+		return replaced;
+	}
+
+	/**
+	 * Return the TLB set that the specified virtual page maps to.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the set number.
+	 */
+	private int tlbSet(int vpn) {
+		return vpn % tlbSets;
+	}
+
+	/**
+	 * Record a successful lookup of the specified TLB entry.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	private void referenceTLB(int number) {
+		privilege.stats.numTLBHits++;
+		tlbLastUsed[number] = ++tlbClock;
+		lastTLBEntry = number;
 	}
 
 	/**
@@ -287,11 +471,33 @@ public final class Processor {
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param cache the micro-TLB for this kind of reference.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
+	private int translate(int vaddr, int size, boolean writing,
+			MicroTLB cache) throws MipsException {
+		if (!tracing && (vaddr & (size - 1)) == 0) {
+			int vpn = pageFromAddress(vaddr);
+			TranslationEntry entry = cache.lookup(vpn);
+
+			// a page table entry may be replaced or changed by the kernel at
+			// any time, but TLB entries only change through writeTLBEntry()
+			if (entry != null
+					&& (usingTLB || (translations[vpn] == entry && entry.valid))
+					&& !(entry.readOnly && writing) && entry.ppn >= 0
+					&& entry.ppn < numPhysPages) {
+				if (usingTLB)
+					referenceTLB(cache.number(vpn));
+
+				entry.used = true;
+				if (writing)
+					entry.dirty = true;
+
+				return (entry.ppn * pageSize) + offsetFromAddress(vaddr);
+			}
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -307,6 +513,7 @@ public final class Processor {
 		int offset = offsetFromAddress(vaddr);
 
 		TranslationEntry entry = null;
+		int number = -1;
 
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
@@ -319,11 +526,13 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries in the set for matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
+			int first = tlbSet(vpn) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
 				if (translations[i].valid && translations[i].vpn == vpn) {
 					entry = translations[i];
+					number = i;
 					break;
 				}
 			}
@@ -332,6 +541,8 @@ public final class Processor {
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+
+			referenceTLB(number);
 		}
 
 		// check if trying to write a read-only page
@@ -354,6 +565,8 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		cache.insert(vpn, entry, number);
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
@@ -375,8 +588,8 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = Lib.bytesToInt(mainMemory,
+				translate(vaddr, size, false, dataTLB), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -402,7 +615,11 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true, dataTLB);
+		if (paddr / pageSize == codePage)
+			codeModified = true;
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
 	}
 
 	/**
@@ -552,6 +769,30 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/** Number of TLB sets. */
+	private int tlbSets;
+
+	/** The policy used to choose the TLB entry to replace. */
+	private int tlbReplacement = replaceRandom;
+
+	private static final int replaceRandom = 0, replaceFIFO = 1,
+			replaceLRU = 2;
+
+	/** The time each TLB entry was last filled or used. */
+	private long[] tlbLastUsed;
+
+	/** The next entry to replace in each set, for FIFO replacement. */
+	private int[] tlbNextVictim;
+
+	/** Counts TLB fills and lookups, to order them for LRU replacement. */
+	private long tlbClock = 0;
+
+	/** The TLB entry used by the last successful translation. */
+	private int lastTLBEntry;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -570,6 +811,39 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/** Decoded instructions, indexed by physical word address. */
+	private Decoded[] decodedInstructions;
+
+	/** <tt>true</tt> if user code is executed a basic block at a time. */
+	private boolean usingBlocks;
+
+	/**
+	 * <tt>true</tt> if the ticks of consecutive instructions are charged in
+	 * one call, up to the next interrupt.
+	 */
+	private boolean batchingTicks;
+
+	/** Basic blocks, indexed by the physical word address they start at. */
+	private BasicBlock[] basicBlocks;
+
+	/** The number of entries after which a basic block is compiled. */
+	private int compileThreshold;
+
+	/** The physical page of the compiled block being executed, if any. */
+	private int codePage = -1;
+
+	/** Set when a store hits <tt>codePage</tt>. */
+	private boolean codeModified;
+
+	/** Recent translations used to fetch instructions. */
+	private MicroTLB fetchTLB = new MicroTLB();
+
+	/** Recent translations used to load and store data. */
+	private MicroTLB dataTLB = new MicroTLB();
+
+	/** <tt>true</tt> if memory references are being traced. */
+	private boolean tracing;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,6 +853,54 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgInterrupt = 'i';
+
+	/**
+	 * A small direct-mapped cache of the translation entries that recently
+	 * succeeded, indexed by virtual page number. A cached entry is only a
+	 * hint: <tt>translate()</tt> still checks that it is current, and that
+	 * the access is permitted, before using it.
+	 */
+	private static final class MicroTLB {
+		TranslationEntry lookup(int vpn) {
+			int slot = vpn & (size - 1);
+
+			if (vpns[slot] != vpn)
+				return null;
+
+			return entries[slot];
+		}
+
+		/**
+		 * Return the TLB entry number cached with the last entry found for
+		 * <i>vpn</i>, or -1 if not using a TLB.
+		 */
+		int number(int vpn) {
+			return numbers[vpn & (size - 1)];
+		}
+
+		void insert(int vpn, TranslationEntry entry, int number) {
+			int slot = vpn & (size - 1);
+
+			vpns[slot] = vpn;
+			entries[slot] = entry;
+			numbers[slot] = number;
+		}
+
+		void flush() {
+			for (int i = 0; i < size; i++)
+				entries[i] = null;
+		}
+
+		private static final int size = 8;
+
+		private final int[] vpns = new int[size];
+
+		private final int[] numbers = new int[size];
+
+		private final TranslationEntry[] entries = new TranslationEntry[size];
+	}
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
@@ -633,6 +955,102 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute the basic block starting at the current PC, stopping early
+		 * if control leaves the block or the budget is used up. On return,
+		 * or when an exception is thrown, <tt>blockCount</tt> holds the number
+		 * of instructions that completed.
+		 * 
+		 * @param budget the maximum number of instructions to execute.
+		 */
+		public void runBlock(int budget) throws MipsException {
+			blockCount = 0;
+
+			int pc = registers[regPC];
+			int paddr = translate(pc, 4, false, fetchTLB);
+			int fetchEntry = lastTLBEntry;
+
+			BasicBlock block = basicBlockAt(paddr);
+
+			if (block.compiled == null && compileThreshold > 0
+					&& ++block.entries >= compileThreshold)
+				block.compile();
+
+			if (block.compiled != null) {
+				if (block.matches(paddr)) {
+					runCompiled(block.compiled, pc, paddr, fetchEntry, budget);
+					return;
+				}
+
+				block = newBasicBlock(paddr);
+			}
+
+			for (int i = 0;;) {
+				// account for the fetch, as if it had been translated
+				if (usingTLB && blockCount > 0)
+					referenceTLB(fetchEntry);
+
+				Decoded decoded = block.instructions[i];
+
+				// the code has been overwritten since the block was built
+				if (decoded.value != Lib.bytesToInt(mainMemory, paddr, 4)) {
+					block = newBasicBlock(paddr);
+					i = 0;
+					decoded = block.instructions[0];
+				}
+
+				run(decoded);
+
+				blockCount++;
+				pc += 4;
+				paddr += 4;
+
+				if (blockCount == budget || ++i == block.instructions.length
+						|| registers[regPC] != pc)
+					return;
+			}
+		}
+
+		/**
+		 * Execute the operations of a compiled basic block, with the same
+		 * stopping rules as <tt>runBlock()</tt>. Execution also stops after
+		 * any store to the block's own page, so that the block is checked
+		 * against memory again before it next runs.
+		 */
+		private void runCompiled(CompiledOp[] ops, int pc, int paddr,
+				int fetchEntry, int budget) throws MipsException {
+			codePage = paddr / pageSize;
+			codeModified = false;
+
+			for (int i = 0;;) {
+				if (usingTLB && i > 0)
+					referenceTLB(fetchEntry);
+
+				ops[i].run();
+
+				blockCount++;
+				pc += 4;
+
+				if (blockCount == budget || ++i == ops.length
+						|| registers[regPC] != pc || codeModified)
+					return;
+			}
+		}
+
+		/**
+		 * Execute an instruction that has already been fetched and decoded.
+		 * 
+		 * @param decoded the decoded instruction.
+		 */
+		public void run(Decoded decoded) throws MipsException {
+			this.decoded = decoded;
+			value = decoded.value;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -643,63 +1061,43 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			int paddr = translate(registers[regPC], 4, false, fetchTLB);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			decoded = decodedInstruction(paddr, value);
+		}
+
+		private void decode() {
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -710,11 +1108,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1070,6 +1463,8 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
+		Decoded decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1085,6 +1480,556 @@ public final class Processor {
 		int mask;
 
 		boolean branch;
+
+		int blockCount;
+	}
+
+	/**
+	 * Return the number of user instructions that can execute before the next
+	 * pending interrupt falls due.
+	 * 
+	 * @return the instruction budget for the next run of user code.
+	 */
+	private int blockBudget() {
+		long ticks = privilege.interrupt.nextDueTime()
+				- privilege.stats.totalTicks;
+
+		if (ticks <= Stats.UserTick)
+			return 1;
+
+		return (int) Math.min((ticks + Stats.UserTick - 1) / Stats.UserTick,
+				Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Return the basic block starting at the specified physical address,
+	 * building it if it is not cached.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block.
+	 */
+	private BasicBlock basicBlockAt(int paddr) {
+		BasicBlock block = basicBlocks[paddr >>> 2];
+		if (block == null)
+			block = newBasicBlock(paddr);
+
+		return block;
+	}
+
+	/**
+	 * Decode a new basic block starting at the specified physical address, and
+	 * cache it. The block runs up to and including the first branch and its
+	 * delay slot, syscall or invalid instruction, and never crosses a page
+	 * boundary, so a single translation covers all of it.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the new basic block.
+	 */
+	private BasicBlock newBasicBlock(int paddr) {
+		int pageEnd = paddr - paddr % pageSize + pageSize;
+
+		Decoded[] instructions = new Decoded[(pageEnd - paddr) / 4];
+		int length = 0;
+
+		for (int addr = paddr; addr < pageEnd; addr += 4) {
+			Decoded decoded = decodedInstruction(addr,
+					Lib.bytesToInt(mainMemory, addr, 4));
+
+			instructions[length++] = decoded;
+
+			if (Lib.test(Mips.BRANCH, decoded.flags)) {
+				// include the delay slot
+				if (addr + 4 < pageEnd)
+					instructions[length++] = decodedInstruction(addr + 4,
+							Lib.bytesToInt(mainMemory, addr + 4, 4));
+				break;
+			}
+
+			if (decoded.operation == Mips.SYSCALL
+					|| decoded.operation == Mips.UNIMPL
+					|| decoded.operation == Mips.INVALID)
+				break;
+		}
+
+		BasicBlock block = new BasicBlock(instructions, length);
+		basicBlocks[paddr >>> 2] = block;
+
+		return block;
+	}
+
+	/**
+	 * A straight-line run of decoded instructions within one physical page.
+	 */
+	private final class BasicBlock {
+		BasicBlock(Decoded[] instructions, int length) {
+			this.instructions = new Decoded[length];
+			System.arraycopy(instructions, 0, this.instructions, 0, length);
+		}
+
+		/**
+		 * Test whether memory still holds the instructions this block was
+		 * built from.
+		 * 
+		 * @param paddr the physical address of the first instruction.
+		 * @return <tt>true</tt> if no instruction in the block has changed.
+		 */
+		boolean matches(int paddr) {
+			for (int i = 0; i < instructions.length; i++, paddr += 4) {
+				if (instructions[i].value != Lib.bytesToInt(mainMemory, paddr,
+						4))
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Compile this block into a sequence of operations.
+		 */
+		void compile() {
+			compiled = new CompiledOp[instructions.length];
+
+			for (int i = 0; i < instructions.length; i++)
+				compiled[i] = compileInstruction(instructions[i]);
+		}
+
+		final Decoded[] instructions;
+
+		/** The number of times this block has been entered uncompiled. */
+		int entries = 0;
+
+		CompiledOp[] compiled = null;
+	}
+
+	/**
+	 * Return a compiled operation for the specified instruction. Operations
+	 * have the same effect on the registers, memory and delayed load as the
+	 * instruction would have when interpreted; instructions without a compiled
+	 * form are interpreted.
+	 * 
+	 * @param decoded the decoded instruction.
+	 * @return the compiled operation.
+	 */
+	private CompiledOp compileInstruction(Decoded decoded) {
+		switch (decoded.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.MULT:
+		case Mips.DIV:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.SLT:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.LUI:
+		case Mips.MFLO:
+		case Mips.MFHI:
+		case Mips.MTLO:
+		case Mips.MTHI:
+			return new ArithmeticOp(decoded);
+
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+			return new BranchOp(decoded);
+
+		case Mips.JUMP:
+			return new JumpOp(decoded);
+
+		case Mips.LOAD:
+			return new LoadOp(decoded);
+
+		case Mips.STORE:
+			return new StoreOp(decoded);
+
+		default:
+			return new InterpretedOp(decoded);
+		}
+	}
+
+	/**
+	 * Finish the current instruction: complete the delayed load in progress,
+	 * write the destination register, and advance the PC to the next
+	 * sequential instruction.
+	 * 
+	 * @param dstReg the destination register, or 0 if none.
+	 * @param value the value to write to the destination register.
+	 */
+	private void retire(int dstReg, int value) {
+		finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+
+		registers[regPC] = registers[regNextPC];
+		registers[regNextPC] += 4;
+	}
+
+	/**
+	 * One instruction of a compiled basic block.
+	 */
+	private abstract class CompiledOp {
+		abstract void run() throws MipsException;
+	}
+
+	/**
+	 * A compiled ALU, multiply, divide or hi/lo transfer instruction.
+	 */
+	private final class ArithmeticOp extends CompiledOp {
+		ArithmeticOp(Decoded decoded) {
+			operation = decoded.operation;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			sh = decoded.sh;
+			imm = decoded.imm;
+			shiftImm = Lib.test(Mips.SRC1SH, decoded.flags);
+			immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+			unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+			overflow = Lib.test(Mips.OVERFLOW, decoded.flags);
+			dstReg = Lib.test(Mips.DST, decoded.flags) ? decoded.dstReg : 0;
+		}
+
+		void run() throws MipsException {
+			long src1 = shiftImm ? sh : registers[rs];
+			long src2 = immediate ? imm : registers[rt];
+			long dst = 0;
+
+			if (unsigned) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			switch (operation) {
+			case Mips.ADD:
+				dst = src1 + src2;
+				break;
+			case Mips.SUB:
+				dst = src1 - src2;
+				break;
+			case Mips.MULT:
+				dst = src1 * src2;
+				registers[regLo] = (int) Lib.extract(dst, 0, 32);
+				registers[regHi] = (int) Lib.extract(dst, 32, 32);
+				break;
+			case Mips.DIV:
+				try {
+					registers[regLo] = (int) (src1 / src2);
+					registers[regHi] = (int) (src1 % src2);
+					if (registers[regLo] * src2 + registers[regHi] != src1)
+						throw new ArithmeticException();
+				}
+				catch (ArithmeticException e) {
+					throw new MipsException(exceptionOverflow);
+				}
+				break;
+			case Mips.SLL:
+				dst = src2 << (src1 & 0x1F);
+				break;
+			case Mips.SRA:
+				dst = src2 >> (src1 & 0x1F);
+				break;
+			case Mips.SRL:
+				dst = src2 >>> (src1 & 0x1F);
+				break;
+			case Mips.SLT:
+				dst = (src1 < src2) ? 1 : 0;
+				break;
+			case Mips.AND:
+				dst = src1 & src2;
+				break;
+			case Mips.OR:
+				dst = src1 | src2;
+				break;
+			case Mips.NOR:
+				dst = ~(src1 | src2);
+				break;
+			case Mips.XOR:
+				dst = src1 ^ src2;
+				break;
+			case Mips.LUI:
+				dst = imm << 16;
+				break;
+			case Mips.MFLO:
+				dst = registers[regLo];
+				break;
+			case Mips.MFHI:
+				dst = registers[regHi];
+				break;
+			case Mips.MTLO:
+				registers[regLo] = (int) src1;
+				break;
+			case Mips.MTHI:
+				registers[regHi] = (int) src1;
+				break;
+			default:
+				Lib.assertNotReached();
+			}
+
+			// same test as Instruction.writeBack()
+			if (overflow && Lib.test(dst, 31) != Lib.test(dst, 32))
+				throw new MipsException(exceptionOverflow);
+
+			retire(dstReg, (int) dst);
+		}
+
+		private final int operation, rs, rt, sh, imm, dstReg;
+
+		private final boolean shiftImm, immediate, unsigned, overflow;
+	}
+
+	/**
+	 * A compiled conditional branch, with or without link.
+	 */
+	private final class BranchOp extends CompiledOp {
+		BranchOp(Decoded decoded) {
+			operation = decoded.operation;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			offset = decoded.imm << 2;
+			linkReg = Lib.test(Mips.LINK, decoded.flags) ? decoded.dstReg : 0;
+		}
+
+		void run() {
+			int src1 = registers[rs];
+			int src2 = registers[rt];
+			boolean branch;
+
+			switch (operation) {
+			case Mips.BEQ:
+				branch = (src1 == src2);
+				break;
+			case Mips.BNE:
+				branch = (src1 != src2);
+				break;
+			case Mips.BGEZ:
+				branch = (src1 >= 0);
+				break;
+			case Mips.BGTZ:
+				branch = (src1 > 0);
+				break;
+			case Mips.BLEZ:
+				branch = (src1 <= 0);
+				break;
+			default:
+				branch = (src1 < 0);
+				break;
+			}
+
+			int delaySlot = registers[regNextPC];
+			int nextPC = branch ? delaySlot + offset : delaySlot + 4;
+
+			finishLoad();
+
+			if (linkReg != 0)
+				registers[linkReg] = delaySlot + 4;
+
+			registers[regPC] = delaySlot;
+			registers[regNextPC] = nextPC;
+		}
+
+		private final int operation, rs, rt, offset, linkReg;
+	}
+
+	/**
+	 * A compiled jump, to a register or to an absolute target, with or
+	 * without link.
+	 */
+	private final class JumpOp extends CompiledOp {
+		JumpOp(Decoded decoded) {
+			rs = decoded.rs;
+			toRegister = (decoded.format == Mips.RFMT);
+			target = decoded.target << 2;
+			linkReg = Lib.test(Mips.LINK, decoded.flags) ? decoded.dstReg : 0;
+		}
+
+		void run() {
+			int delaySlot = registers[regNextPC];
+			int nextPC = toRegister ? registers[rs]
+					: (delaySlot & 0xF0000000) | target;
+
+			finishLoad();
+
+			if (linkReg != 0)
+				registers[linkReg] = delaySlot + 4;
+
+			registers[regPC] = delaySlot;
+			registers[regNextPC] = nextPC;
+		}
+
+		private final int rs, target, linkReg;
+
+		private final boolean toRegister;
+	}
+
+	/**
+	 * A compiled byte, halfword or word load.
+	 */
+	private final class LoadOp extends CompiledOp {
+		LoadOp(Decoded decoded) {
+			rs = decoded.rs;
+			imm = decoded.imm;
+			size = decoded.size;
+			unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+			dstReg = decoded.dstReg;
+		}
+
+		void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+			registers[regPC] = registers[regNextPC];
+			registers[regNextPC] += 4;
+		}
+
+		private final int rs, imm, size, dstReg;
+
+		private final boolean unsigned;
+	}
+
+	/**
+	 * A compiled byte, halfword or word store.
+	 */
+	private final class StoreOp extends CompiledOp {
+		StoreOp(Decoded decoded) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			imm = decoded.imm;
+			size = decoded.size;
+		}
+
+		void run() throws MipsException {
+			int value = registers[rt];
+
+			writeMem(registers[rs] + imm, size, value);
+
+			retire(0, 0);
+		}
+
+		private final int rs, rt, imm, size;
+	}
+
+	/**
+	 * An instruction with no compiled form, executed by the interpreter.
+	 */
+	private final class InterpretedOp extends CompiledOp {
+		InterpretedOp(Decoded decoded) {
+			this.decoded = decoded;
+		}
+
+		void run() throws MipsException {
+			inst.run(decoded);
+		}
+
+		private final Decoded decoded;
+
+		private final Instruction inst = new Instruction();
+	}
+
+	/**
+	 * Return the decoded form of the instruction word stored at the specified
+	 * physical address, decoding it only if the cached copy is missing or no
+	 * longer matches the word in memory.
+	 * 
+	 * <p>
+	 * The cache is indexed by physical word, so it survives context switches
+	 * and remapping, and comparing the cached word against memory catches any
+	 * store to the page, whether made by a user instruction or by the kernel
+	 * through <tt>getMemory()</tt>.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param value the instruction word currently at that address.
+	 * @return the decoded instruction.
+	 */
+	private Decoded decodedInstruction(int paddr, int value) {
+		int index = paddr >>> 2;
+
+		Decoded decoded = decodedInstructions[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			decodedInstructions[index] = decoded;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * The fields of an instruction word that do not depend on the register
+	 * file, extracted once and shared by every execution of the word.
+	 */
+	private static final class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = Lib.extract(value, 0, 16);
+			else
+				imm = Lib.extend(value, 0, 16);
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
 	}
 
 	private static class Mips {
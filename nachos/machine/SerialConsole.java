@@ -38,6 +38,18 @@ public interface SerialConsole {
 	 */
 	public int readByte();
 
+	/**
+	 * Return as many of the bytes received as are available at once, up to
+	 * <i>length</i>. A console that receives one byte at a time returns at
+	 * most one. Like <tt>readByte()</tt>, this lets the next byte arrive.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the index in <i>buf</i> of the first byte to store.
+	 * @param length the most bytes to return.
+	 * @return the number of bytes stored, or 0 if none is available.
+	 */
+	public int readBytes(byte[] buf, int offset, int length);
+
 	/**
 	 * Send another byte. If a byte is already being sent, the result is not
 	 * defined.
@@ -45,4 +57,16 @@ public interface SerialConsole {
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value);
+
+	/**
+	 * Send a block of bytes. They take as long to send as they would one at a
+	 * time, but the send interrupt handler is only called once, when the last
+	 * of them has been sent. If a byte is already being sent, the result is
+	 * not defined.
+	 * 
+	 * @param buf the buffer holding the bytes to send.
+	 * @param offset the index of the first byte in <i>buf</i>.
+	 * @param length the number of bytes to send, which must be positive.
+	 */
+	public void writeBytes(byte[] buf, int offset, int length);
 }
@@ -5,9 +5,17 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * A text-based console that uses System.in and System.out.
+ * 
+ * <p>
+ * By default, the console polls <tt>in()</tt> for a byte every
+ * <tt>Stats.ConsoleTime</tt> ticks. If <tt>StandardConsole.readerThread</tt>
+ * is set, a host thread reads System.in instead, and a receive interrupt is
+ * only scheduled when it has read something. <tt>readBytes()</tt> then returns
+ * everything it has read so far, such as a whole line typed at a terminal.
  */
 public class StandardConsole implements SerialConsole {
 	/**
@@ -32,7 +40,100 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
-		scheduleReceiveInterrupt();
+		if (Config.getBoolean("StandardConsole.readerThread", false))
+			startReaderThread();
+		else
+			scheduleReceiveInterrupt();
+	}
+
+	/**
+	 * Start the host thread that reads System.in into <tt>hostInput</tt>.
+	 * Until it has read something, no receive interrupt is pending.
+	 */
+	private void startReaderThread() {
+		hostInput = new ArrayBlockingQueue<byte[]>(16);
+		receiveArmed = true;
+
+		hostInputArrived = new Runnable() {
+			public void run() {
+				if (receiveArmed) {
+					receiveArmed = false;
+					receiveInterrupt();
+				}
+			}
+		};
+
+		Thread readerThread = new Thread(new Runnable() {
+			public void run() {
+				readerLoop();
+			}
+		});
+
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	private void readerLoop() {
+		byte[] buffer = new byte[256];
+
+		while (true) {
+			int length;
+			try {
+				length = System.in.read(buffer);
+			}
+			catch (IOException e) {
+				return;
+			}
+
+			if (length <= 0)
+				return;
+
+			byte[] chunk = new byte[length];
+			System.arraycopy(buffer, 0, chunk, 0, length);
+
+			try {
+				hostInput.put(chunk);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			privilege.interrupt.scheduleFromHost("console input",
+					hostInputArrived);
+		}
+	}
+
+	/**
+	 * Take the next byte read by the reader thread.
+	 * 
+	 * @return the byte, or -1 if the reader thread has not read any more.
+	 */
+	private int nextHostByte() {
+		if (hostChunk == null || hostIndex == hostChunk.length) {
+			hostChunk = hostInput.poll();
+			hostIndex = 0;
+
+			if (hostChunk == null)
+				return -1;
+		}
+
+		return hostChunk[hostIndex++] & 0xFF;
+	}
+
+	private boolean hostInputAvailable() {
+		return (hostChunk != null && hostIndex < hostChunk.length)
+				|| !hostInput.isEmpty();
+	}
+
+	/**
+	 * Let the next byte arrive: after <tt>Stats.ConsoleTime</tt> ticks, or,
+	 * with a reader thread that has nothing buffered, when it reads more.
+	 */
+	private void scheduleNextReceive() {
+		if (hostInput == null || hostInputAvailable())
+			scheduleReceiveInterrupt();
+		else
+			receiveArmed = true;
 	}
 
 	public final void setInterruptHandlers(Runnable receiveInterruptHandler,
@@ -91,9 +192,18 @@ public class StandardConsole implements SerialConsole {
 	private void receiveInterrupt() {
 		Lib.assertTrue(incomingKey == -1);
 
-		incomingKey = translateCharacter(in());
+		if (hostInput == null) {
+			incomingKey = translateCharacter(in());
+		}
+		else {
+			// skip invalid characters without waiting for another interrupt
+			int c;
+			while (incomingKey == -1 && (c = nextHostByte()) != -1)
+				incomingKey = translateCharacter(c);
+		}
+
 		if (incomingKey == -1) {
-			scheduleReceiveInterrupt();
+			scheduleNextReceive();
 		}
 		else {
 			privilege.stats.numConsoleReads++;
@@ -108,12 +218,36 @@ public class StandardConsole implements SerialConsole {
 
 		if (incomingKey != -1) {
 			incomingKey = -1;
-			scheduleReceiveInterrupt();
+			scheduleNextReceive();
 		}
 
 		return key;
 	}
 
+	public final int readBytes(byte[] buf, int offset, int length) {
+		if (incomingKey == -1 || length <= 0)
+			return 0;
+
+		int n = 0;
+		buf[offset + n++] = (byte) incomingKey;
+		incomingKey = -1;
+
+		// with a reader thread, hand over the rest of what it has read too
+		if (hostInput != null) {
+			int c;
+			while (n < length && (c = nextHostByte()) != -1) {
+				c = translateCharacter(c);
+				if (c != -1) {
+					buf[offset + n++] = (byte) c;
+					privilege.stats.numConsoleReads++;
+				}
+			}
+		}
+
+		scheduleNextReceive();
+		return n;
+	}
+
 	private void scheduleSendInterrupt() {
 		privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
 				sendInterrupt);
@@ -129,13 +263,32 @@ public class StandardConsole implements SerialConsole {
 		System.out.flush();
 	}
 
+	/**
+	 * Write a block of bytes to the object backing this console.
+	 * 
+	 * @param buf the buffer holding the bytes to write.
+	 * @param offset the index of the first byte in <i>buf</i>.
+	 * @param length the number of bytes to write.
+	 */
+	protected void out(byte[] buf, int offset, int length) {
+		System.out.write(buf, offset, length);
+		System.out.flush();
+	}
+
 	private void sendInterrupt() {
-		Lib.assertTrue(outgoingKey != -1);
+		if (outgoingBlock != null) {
+			out(outgoingBlock, 0, outgoingBlock.length);
+			privilege.stats.numConsoleWrites += outgoingBlock.length;
+			outgoingBlock = null;
+		}
+		else {
+			Lib.assertTrue(outgoingKey != -1);
 
-		out(outgoingKey);
-		outgoingKey = -1;
+			out(outgoingKey);
+			outgoingKey = -1;
 
-		privilege.stats.numConsoleWrites++;
+			privilege.stats.numConsoleWrites++;
+		}
 
 		if (sendInterruptHandler != null)
 			sendInterruptHandler.run();
@@ -148,6 +301,17 @@ public class StandardConsole implements SerialConsole {
 		outgoingKey = value & 0xFF;
 	}
 
+	public final void writeBytes(byte[] buf, int offset, int length) {
+		Lib.assertTrue(length > 0);
+		Lib.assertTrue(outgoingKey == -1 && outgoingBlock == null);
+
+		outgoingBlock = new byte[length];
+		System.arraycopy(buf, offset, outgoingBlock, 0, length);
+
+		privilege.interrupt.schedule((long) Stats.ConsoleTime * length,
+				"console write", sendInterrupt);
+	}
+
 	private Privilege privilege = null;
 
 	private Runnable receiveInterrupt;
@@ -162,5 +326,28 @@ public class StandardConsole implements SerialConsole {
 
 	private int outgoingKey = -1;
 
+	/** The block being sent by <tt>writeBytes()</tt>, if any. */
+	private byte[] outgoingBlock = null;
+
 	private boolean prevCarriageReturn = false;
+
+	/**
+	 * Chunks of System.in read by the reader thread, or <tt>null</tt> if
+	 * there is no reader thread.
+	 */
+	private ArrayBlockingQueue<byte[]> hostInput = null;
+
+	/** The chunk being taken apart by <tt>nextHostByte()</tt>. */
+	private byte[] hostChunk = null;
+
+	private int hostIndex = 0;
+
+	/**
+	 * <tt>true</tt> if no receive interrupt is pending because the reader
+	 * thread has nothing buffered, so the next chunk it reads should cause
+	 * one.
+	 */
+	private boolean receiveArmed = false;
+
+	private Runnable hostInputArrived;
 }
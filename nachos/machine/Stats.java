@@ -25,7 +25,8 @@ public final class Stats {
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", TLB misses " + numTLBMisses + ", TLB hits "
+				+ numTLBHits);
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
@@ -66,6 +67,9 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of successful TLB lookups. */
+	public long numTLBHits = 0;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
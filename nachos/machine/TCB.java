@@ -5,7 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,19 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in the configuration file and the JVM
+ * supports them, every TCB but the first runs on a virtual thread, which is
+ * much cheaper to create and switch to than a platform thread, and is not
+ * subject to <tt>maxThreads</tt>. Only one TCB runs at a time either way.
+ * 
+ * <p>
+ * The Java thread of a destroyed TCB is kept parked for reuse by the next TCB
+ * to start, so that short-lived KThreads do not pay for creating one. At most
+ * <tt>TCB.idleThreads</tt> (default 32) are kept. <tt>TCB.maxThreads</tt>
+ * (default 250) limits the number of started, non-destroyed TCBs on platform
+ * threads.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +54,46 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+		maxIdleThreads = Config.getInteger("TCB.idleThreads", maxIdleThreads);
+
+		if (Config.getBoolean("TCB.virtualThreads", false))
+			findVirtualThreadBuilder();
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> and
+	 * <tt>Thread.Builder.unstarted()</tt> by reflection, so that Nachos still
+	 * builds and runs on JVMs that do not have virtual threads. If they are
+	 * missing, platform threads are used.
+	 * 
+	 * <p>
+	 * Since only one TCB runs at a time, the virtual thread scheduler is given
+	 * a single carrier thread, and may not add more while a virtual thread is
+	 * blocked in the JVM. Carrier threads are then only created when a TCB is
+	 * started or woken up (see <tt>handOff()</tt>).
+	 */
+	private static void findVirtualThreadBuilder() {
+		setDefaultProperty("jdk.virtualThreadScheduler.parallelism", "1");
+		setDefaultProperty("jdk.virtualThreadScheduler.maxPoolSize", "1");
+
+		try {
+			virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(
+					null);
+			newVirtualThread = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			System.out.print(" (no virtual threads)");
+			virtualThreadBuilder = null;
+			newVirtualThread = null;
+		}
+	}
+
+	private static void setDefaultProperty(String key, String value) {
+		if (System.getProperty(key) == null)
+			System.setProperty(key, value);
 	}
 
 	/**
@@ -68,7 +123,8 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(virtualThreadBuilder != null
+				|| numRunningThreads < maxThreads);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -82,40 +138,45 @@ public final class TCB {
 
 		/*
 		 * At this point all checks are complete, so we go ahead and start the
-		 * TCB. Whether or not this is the first TCB, it gets added to
-		 * runningThreads, and we save the target closure.
+		 * TCB. Whether or not this is the first TCB, it gets counted in
+		 * numRunningThreads, and we save the target closure.
 		 */
-		runningThreads.add(this);
+		numRunningThreads++;
 
 		this.target = target;
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we need a Java thread to run it.
+			 * We reuse an idle carrier if there is one, and otherwise make a
+			 * new Java thread. Creating Java threads is a privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
-
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			carrier = idleCarriers.pollFirst();
+			boolean newCarrier = (carrier == null);
+
+			if (newCarrier) {
+				final Carrier c = new Carrier();
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						c.javaThread = newThread(c);
+					}
+				});
+				carrier = c;
+			}
+
+			javaThread = carrier.javaThread;
+			carrier.next = this;
 
 			/*
 			 * The Java thread hasn't yet started, but we need to get it
 			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * current TCB, starting or unparking its Java thread, and waiting
+			 * for it to wake us up from threadroot(). Once the new TCB wakes us
+			 * up, it's safe to context switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			handOff(newCarrier);
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -216,6 +277,24 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	/**
+	 * Create an unstarted Java thread to run the specified target: a virtual
+	 * thread if they are enabled, and a platform thread otherwise. Must be
+	 * called with privilege.
+	 */
+	private static Thread newThread(Runnable target) {
+		if (virtualThreadBuilder == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+					target);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -255,16 +334,36 @@ public final class TCB {
 				privilege.exit(1);
 			}
 
-			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
+			numRunningThreads--;
+			if (numRunningThreads == 0)
 				privilege.exit(0);
+
+			/*
+			 * The TCB that destroyed us is still waiting, so nothing else can
+			 * touch idleCarriers until we wake it up.
+			 */
+			if (carrier != null && idleCarriers.size() < maxIdleThreads) {
+				carrier.idle = true;
+				idleCarriers.addFirst(carrier);
+			}
+
+			currentTCB.interrupt();
+
+			/*
+			 * Virtual threads are daemon threads, so if the first TCB's Java
+			 * thread returned, the JVM could exit with them still running.
+			 */
+			if (isFirstTCB && virtualThreadBuilder != null) {
+				while (true)
+					LockSupport.park();
+			}
 		}
 		catch (Throwable e) {
 			System.out.print("\n");
 			e.printStackTrace();
 
-			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
+			numRunningThreads--;
+			if (numRunningThreads == 0)
 				privilege.exit(1);
 			else
 				die();
@@ -276,47 +375,87 @@ public final class TCB {
 	 * wait for another TCB to context switch to this TCB. Since this TCB might
 	 * get destroyed instead, we check the <tt>done</tt> flag after waking up.
 	 * If it is set, the TCB that woke us up is waiting for an acknowledgement
-	 * in destroy(). Otherwise, we just set the current TCB to this TCB and
-	 * return.
+	 * in destroy(), which <tt>threadroot()</tt> sends once it has cleaned up.
+	 * Otherwise, we just set the current TCB to this TCB and return.
 	 */
 	private void yield() {
 		waitForInterrupt();
 
-		if (done) {
-			currentTCB.interrupt();
+		if (done)
 			throw new ThreadDeath();
-		}
 
 		currentTCB = this;
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+	 * TCB needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * The volatile <tt>running</tt> flag is the only thing passed between the
+	 * two threads, so no monitor is needed. If the flag is set before we park,
+	 * the matching <tt>unpark()</tt> has either already been granted or is
+	 * about to be, and <tt>park()</tt> returns at once. Spurious wakeups just
+	 * go around the loop again.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
+	 * and unparking the Java thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		handOff(false);
+	}
+
+	/**
+	 * Start or unpark the Java thread bound to this TCB.
+	 * 
+	 * <p>
+	 * Either may make the JVM create a carrier thread for virtual threads,
+	 * which the security manager only allows with privilege. Privilege cannot
+	 * simply be held across the call, because the other thread may start
+	 * running before it is given up, so the current thread is instead marked
+	 * as handing off until the call returns.
+	 * 
+	 * @param start <tt>true</tt> to start the thread, <tt>false</tt> to unpark
+	 * it.
+	 */
+	private void handOff(boolean start) {
+		boolean virtual = (virtualThreadBuilder != null);
+
+		if (virtual)
+			handingOff.set(Boolean.TRUE);
+		try {
+			if (start)
+				javaThread.start();
+			else
+				LockSupport.unpark(javaThread);
+		}
+		finally {
+			if (virtual)
+				handingOff.remove();
+		}
+	}
+
+	/**
+	 * Test if the current JVM thread is starting or waking up another TCB's
+	 * virtual thread, and so may have to create a carrier thread.
+	 * 
+	 * @return <tt>true</tt> if the current thread is in a TCB handoff.
+	 */
+	public static boolean isHandingOff() {
+		return handingOff.get() != null;
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,9 +481,16 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, unless they run on virtual threads. Set by
+	 * <tt>TCB.maxThreads</tt>.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads = 250;
+
+	/**
+	 * The maximum number of idle carriers kept for reuse. Set by
+	 * <tt>TCB.idleThreads</tt>.
+	 */
+	private static int maxIdleThreads = 32;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -362,23 +508,48 @@ public final class TCB {
 	private static TCB currentTCB = null;
 
 	/**
-	 * A vector containing all <i>running</i> TCB objects. It is initialized to
-	 * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
-	 * added only in <tt>start(Runnable)</tt>, which can only be invoked once on
-	 * each TCB object. TCB objects are removed only in each of the
-	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
-	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
-	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
-	 * first TCB is created, this vector is basically never empty.
+	 * The number of <i>running</i> TCB objects. It is incremented only in
+	 * <tt>start(Runnable)</tt>, which can only be invoked once on each TCB
+	 * object, and decremented only in each of the <tt>catch</tt> clauses of
+	 * <tt>threadroot()</tt>, one of which is always invoked on thread
+	 * termination. It is limited to <tt>maxThreads</tt> by
+	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops it to zero,
+	 * Nachos exits, so once the first TCB is created, it is basically never
+	 * zero.
+	 * 
+	 * <p>
+	 * No lock is needed: it is only updated by the current TCB, or by a TCB
+	 * being destroyed while the current TCB waits for it, and the volatile
+	 * <tt>running</tt> flags order those updates.
+	 */
+	private static int numRunningThreads = 0;
+
+	/**
+	 * Idle carriers, most recently used first. Guarded the same way as
+	 * <tt>numRunningThreads</tt>.
 	 */
-	private static Vector<TCB> runningThreads = new Vector<TCB>();
+	private static ArrayDeque<Carrier> idleCarriers = new ArrayDeque<Carrier>();
 
 	private static Privilege privilege;
 
 	private static KThread toBeDestroyed = null;
 
+	/**
+	 * The <tt>Thread.Builder</tt> for virtual threads, or <tt>null</tt> if
+	 * TCBs run on platform threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	/** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+	private static Method newVirtualThread = null;
+
+	/**
+	 * Set for each Java thread while it is in <tt>handOff()</tt>. It has to be
+	 * per thread, since the thread being woken up may start its own handoff
+	 * before ours returns.
+	 */
+	private static final ThreadLocal<Boolean> handingOff = new ThreadLocal<Boolean>();
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -396,14 +567,14 @@ public final class TCB {
 
 	/**
 	 * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-	 * be running. This is an entirely different condition from membership in
-	 * <tt>runningThreads</tt>, which contains all TCB objects that have started
-	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
+	 * be running. This is an entirely different condition from being counted
+	 * in <tt>numRunningThreads</tt>, which counts all TCB objects that have
+	 * started and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +589,39 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The carrier running this TCB, or <tt>null</tt> for the first TCB, which
+	 * runs on the thread that called <tt>start(Runnable)</tt>.
+	 */
+	private Carrier carrier = null;
+
+	/**
+	 * A Java thread that runs TCBs one after another. When the TCB it runs is
+	 * destroyed, <tt>threadroot()</tt> returns here, and the carrier parks
+	 * until <tt>start(Runnable)</tt> hands it another TCB, or exits if there
+	 * were already enough idle carriers.
+	 */
+	private static class Carrier implements Runnable {
+		public void run() {
+			do {
+				TCB tcb;
+				while ((tcb = next) == null)
+					LockSupport.park(this);
+
+				next = null;
+				idle = false;
+				tcb.threadroot();
+			} while (idle);
+		}
+
+		private Thread javaThread;
+
+		/** The TCB to run next, set by <tt>start(Runnable)</tt>. */
+		private volatile TCB next = null;
+
+		/** Set by <tt>threadroot()</tt> if this carrier was kept for reuse. */
+		private boolean idle = false;
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
@@ -149,6 +149,17 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Schedule an interrupt to occur soon. Unlike <tt>schedule()</tt>,
+		 * this may be called from a non-Nachos thread, such as one waiting for
+		 * host input. The interrupt occurs shortly after the next time pending
+		 * interrupts are handled.
+		 * 
+		 * @param type a name for the type of interrupt being scheduled.
+		 * @param handler the interrupt handler to call.
+		 */
+		public void scheduleFromHost(String type, Runnable handler);
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -157,6 +168,25 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by the specified number of user
+		 * instructions at once. This has the same effect as that many calls to
+		 * <tt>tick(false)</tt>, provided no interrupt falls due before the
+		 * last of them.
+		 * 
+		 * @param numInstructions the number of user instructions executed.
+		 */
+		public void tickUser(int numInstructions);
+
+		/**
+		 * Return the simulated time at which the earliest pending interrupt is
+		 * due.
+		 * 
+		 * @return the time of the next pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if none is pending.
+		 */
+		public long nextDueTime();
 	}
 
 	/**
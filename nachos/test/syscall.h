@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -181,6 +183,40 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * One buffer of a readv() or writev() call: len bytes starting at base.
+ */
+struct iovec {
+    void *base;
+    int len;
+};
+
+/**
+ * Read into each of the iovcnt buffers described by iov in turn, as if by
+ * calling read() on each, but with a single system call. At most 1024 buffers
+ * may be given.
+ *
+ * On success, the total number of bytes read is returned. As with read(), a
+ * short read ends the call early, leaving the remaining buffers untouched.
+ *
+ * On error, -1 is returned, and the new file position is undefined. This can
+ * happen for any reason read() can fail, or if iov itself is invalid.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write each of the iovcnt buffers described by iov in turn, as if by calling
+ * write() on each, but with a single system call. At most 1024 buffers may be
+ * given.
+ *
+ * On success, the total number of bytes written is returned. As with write(),
+ * it IS an error if this is smaller than the total number requested.
+ *
+ * On error, -1 is returned, and the new file position is undefined. This can
+ * happen for any reason write() can fail, or if iov itself is invalid.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or
  * stream and may be reused. The resources associated with the file
@@ -1,6 +1,6 @@
 package nachos.threads;
 
-import java.util.*;
+import java.util.HashMap;
 
 import nachos.machine.*;
 
@@ -16,37 +16,10 @@ public class Alarm {
      * <p>
      * <b>Note</b>: Nachos will not function correctly with more than one alarm.
      */
-    public Queue<AKThread> threadQ = new PriorityQueue<AKThread>(5000, new Comparator<AKThread> (){
-        public int compare(AKThread t1, AKThread t2){
-            if(t1.wake_time > t2.wake_time){
-                return 1;
-            }
-
-            else if(t1.wake_time < t2.wake_time){
-                return -1;
-            }
-
-            else {
-                return 0;
-            }
-
-
-        }});
-
-
-    class AKThread  {
-        KThread thread;
-        long wake_time;
-
-
-        AKThread( KThread k, long t){
-            thread = k;
-            wake_time = t;
-        }
-
-    }
-
     public Alarm() {
+        for (int level = 0; level < wheelLevels; level++)
+            wheel[level] = new Sleeper[wheelSlots];
+
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
                 timerInterrupt();
@@ -56,20 +29,15 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread that
-     * should be run.
+     * periodically (approximately every 500 clock ticks). Wakes up every
+     * thread whose time has come, then causes the current thread to yield,
+     * forcing a context switch if there is another thread that should be run.
      */
     public void timerInterrupt() {
         boolean status = Machine.interrupt().disable();
-        if(!threadQ.isEmpty()){
-            AKThread toCheck = threadQ.peek();
-            if(toCheck.wake_time <= Machine.timer().getTime()){
-                toCheck.thread.ready();
-                threadQ.poll();
-            }
-        }
+        advance(Machine.timer().getTime());
         Machine.interrupt().restore(status);
+
         KThread.currentThread().yield();
     }
 
@@ -86,22 +54,196 @@ public class Alarm {
      * @see nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
+        if (x <= 0)
+            return;
+
         boolean status = Machine.interrupt().disable();
-        if(x <= 0){
+
+        Sleeper sleeper = new Sleeper(KThread.currentThread(),
+                Machine.timer().getTime() + x);
+        sleepers.put(sleeper.thread, sleeper);
+        insert(sleeper);
+
+        KThread.sleep();
+
+        Machine.interrupt().restore(status);
+    }
+
+    /**
+     * Cancel any timer set by <i>thread</i>, effectively waking up the thread
+     * immediately (placing it in the scheduler ready set) and returning
+     * <tt>true</tt>. If <i>thread</i> has no timer set, return <tt>false</tt>.
+     * 
+     * @param thread the thread whose timer should be cancelled.
+     * @return <tt>true</tt> if <i>thread</i> was waiting in
+     * <tt>waitUntil()</tt>.
+     */
+    public boolean cancel(KThread thread) {
+        boolean status = Machine.interrupt().disable();
+
+        Sleeper sleeper = sleepers.remove(thread);
+        if (sleeper != null) {
+            unlink(sleeper);
+            sleeper.thread.ready();
+        }
+
+        Machine.interrupt().restore(status);
+        return sleeper != null;
+    }
+
+    /**
+     * A thread sleeping in <tt>waitUntil()</tt>, linked into a slot of the
+     * wheel.
+     */
+    private static class Sleeper {
+        Sleeper(KThread thread, long wakeTime) {
+            this.thread = thread;
+            this.wakeTime = wakeTime;
+        }
+
+        KThread thread;
+        long wakeTime;
+
+        int level, slot;
+        Sleeper prev, next;
+    }
+
+    /**
+     * Add a sleeper to the wheel, or wake it up if its time has already
+     * passed.
+     * 
+     * <p>
+     * A sleeper goes in the lowest level at which its wake time and
+     * <tt>current</tt> fall in the same slot of the level above; that is,
+     * the level of the highest bit in which they differ. Its slot there is
+     * the wake time's digit at that level, which is always ahead of the
+     * current time's digit, so the sleeper is reached (and cascaded down, or
+     * woken) before that slot is used again.
+     */
+    private void insert(Sleeper sleeper) {
+        if (sleeper.wakeTime <= current) {
+            sleepers.remove(sleeper.thread);
+            sleeper.thread.ready();
             return;
         }
-        long wakeTime = Machine.timer().getTime() + x;
-        if(wakeTime > Machine.timer().getTime()){
-            AKThread toWait = new AKThread(KThread.currentThread(), wakeTime);
-            if(threadQ.size() < 5000){
-              threadQ.add(toWait);
-              KThread.sleep();
+
+        int level = (63 - Long.numberOfLeadingZeros(sleeper.wakeTime ^ current))
+            / wheelBits;
+        int slot = (int) (sleeper.wakeTime >>> (level * wheelBits))
+            & (wheelSlots - 1);
+
+        sleeper.level = level;
+        sleeper.slot = slot;
+        sleeper.prev = null;
+        sleeper.next = wheel[level][slot];
+        if (sleeper.next != null)
+            sleeper.next.prev = sleeper;
+        wheel[level][slot] = sleeper;
+
+        occupied[level] |= 1L << slot;
+        numSleepers++;
+    }
+
+    /**
+     * Remove a sleeper from its slot.
+     */
+    private void unlink(Sleeper sleeper) {
+        if (sleeper.prev != null)
+            sleeper.prev.next = sleeper.next;
+        else
+            wheel[sleeper.level][sleeper.slot] = sleeper.next;
+        if (sleeper.next != null)
+            sleeper.next.prev = sleeper.prev;
+
+        if (wheel[sleeper.level][sleeper.slot] == null)
+            occupied[sleeper.level] &= ~(1L << sleeper.slot);
+        numSleepers--;
+    }
+
+    /**
+     * Take every sleeper out of a slot, and insert each one again relative to
+     * <tt>current</tt>; those whose time has come are woken up.
+     */
+    private void drain(int level, int slot) {
+        Sleeper sleeper = wheel[level][slot];
+
+        wheel[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+
+        while (sleeper != null) {
+            Sleeper next = sleeper.next;
+            numSleepers--;
+            insert(sleeper);
+            sleeper = next;
+        }
+    }
+
+    /**
+     * Move the wheel forward to <i>time</i>, waking up every sleeper whose
+     * wake time is no later than <i>time</i>.
+     * 
+     * <p>
+     * Rather than stepping one tick at a time, this jumps straight to the next
+     * occupied slot of the lowest level, or to the next boundary of that
+     * level, where the higher levels may have to cascade.
+     */
+    private void advance(long time) {
+        while (current < time) {
+            if (numSleepers == 0) {
+                current = time;
+                return;
+            }
+
+            int digit = (int) current & (wheelSlots - 1);
+            long ahead = (digit == wheelSlots - 1) ? 0
+                : occupied[0] & (-1L << (digit + 1));
+
+            long next;
+            if (ahead != 0)
+                next = (current & -wheelSlots) + Long.numberOfTrailingZeros(ahead);
+            else
+                next = (current | (wheelSlots - 1)) + 1;
+
+            if (next > time) {
+                current = time;
+                return;
+            }
+
+            current = next;
+
+            int top = Math.min(Long.numberOfTrailingZeros(current) / wheelBits,
+                    wheelLevels - 1);
+            for (int level = top; level > 0; level--) {
+                drain(level, (int) (current >>> (level * wheelBits))
+                        & (wheelSlots - 1));
             }
+
+            drain(0, (int) current & (wheelSlots - 1));
         }
-        Machine.interrupt().restore(status);
     }
 
+    private static final int wheelBits = 6;
+    private static final int wheelSlots = 1 << wheelBits;
+    private static final int wheelLevels = (64 + wheelBits - 1) / wheelBits;
+
+    /**
+     * The wheel: a slot list for every digit at every level. Slot <i>s</i> at
+     * level <i>l</i> holds sleepers whose wake time has digit <i>s</i> in
+     * bits <tt>[6l, 6l+6)</tt>.
+     */
+    private Sleeper[][] wheel = new Sleeper[wheelLevels][];
+
+    /** A bit for each non-empty slot, per level. */
+    private long[] occupied = new long[wheelLevels];
+
+    /** The time up to which the wheel has been advanced. */
+    private long current = 0;
+
+    private int numSleepers = 0;
+
+    /** The sleeper entry of each sleeping thread, for <tt>cancel()</tt>. */
+    private HashMap<KThread, Sleeper> sleepers = new HashMap<KThread, Sleeper>();
+
     // Add Alarm testing code to the Alarm class
 
     public static void alarmTest1() {
@@ -36,8 +36,8 @@ public class Condition2 {
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        conditionLock.release();
         boolean intStatus = Machine.interrupt().disable();
+        conditionLock.release();
         waitQueue.add(KThread.currentThread());
         
         KThread.sleep();
@@ -94,6 +94,9 @@ public class Condition2 {
                     cv.wake();   // signal
                     cv.sleep();  // wait
                 }
+                // let the other thread out of its last sleep, since
+                // either one may be the first to finish
+                cv.wake();
                 lock.release();
             }
         }
@@ -110,16 +113,17 @@ public class Condition2 {
             ping.fork();
             pong.fork();
 
-            // We need to wait for ping to finish, and the proper way
-            // to do so is to join on ping.  (Note that, when ping is
-            // done, pong is sleeping on the condition variable; if we
-            // were also to join on pong, we would block forever.)
+            // We need to wait for ping and pong to finish, and the
+            // proper way to do so is to join on them.  Whichever one
+            // finishes first wakes the other on its way out, so this
+            // does not depend on the scheduler running ping first.
             // For this to work, join must be implemented.  If you
             // have not implemented join yet, then comment out the
-            // call to join and instead uncomment the loop with
+            // calls to join and instead uncomment the loop with
             // yields; the loop has the same effect, but is a kludgy
             // way to do it.
             ping.join();
+            pong.join();
             // for (int i = 0; i < 50; i++) { KThread.currentThread().yield(); }
         }
     }
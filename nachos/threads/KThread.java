@@ -68,6 +68,8 @@ public class KThread {
 
             createIdleThread();
         }
+
+        joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
     }
 
     /**
@@ -154,6 +156,8 @@ public class KThread {
 
         boolean intStatus = Machine.interrupt().disable();
 
+        joinQueue.acquire(this);
+
         tcb.start(new Runnable() {
             public void run() {
                 runThread();
@@ -203,6 +207,11 @@ public class KThread {
 
         currentThread.status = statusFinished;
         
+        // stop receiving priority through join(); the first call hands the
+        // queue to the joining thread, the last leaves it with no owner
+        while (currentThread.joinQueue.nextThread() != null)
+            ;
+
         if(currentThread().called && currentThread().parent != null){
             currentThread().parent.ready();
         }
@@ -293,6 +302,7 @@ public class KThread {
             Lib.assertTrue(this.called != true && this.parent == null);
             this.parent = currentThread();
             this.called = true;
+            joinQueue.waitForAccess(this.parent);
             this.parent.sleep();    
         }
         Machine.interrupt().restore(status);
@@ -473,6 +483,38 @@ public class KThread {
 	System.out.println("---------All Join tests done------------");
 	System.out.println("");
 	System.out.println("");
+
+	int switches = Config.getInteger("KThread.switchBenchmark", 0);
+	if (switches > 0)
+	    switchBenchmark(switches);
+    }
+
+    /**
+     * Measure how fast context switches are in real time, by having two
+     * threads yield to each other the specified number of times in total.
+     * Set <tt>KThread.switchBenchmark</tt> to run this from
+     * <tt>selfTest()</tt>.
+     */
+    private static void switchBenchmark(int switches) {
+	final int rounds = switches / 2;
+
+	KThread partner = new KThread(new Runnable() {
+		public void run() {
+		    for (int i = 0; i < rounds; i++)
+			KThread.yield();
+		}
+	    }).setName("switch benchmark");
+
+	long start = System.nanoTime();
+	partner.fork();
+	for (int i = 0; i < rounds; i++)
+	    KThread.yield();
+	partner.join();
+	long elapsed = Math.max(System.nanoTime() - start, 1);
+
+	System.out.println("KThread switch benchmark: " + rounds * 2
+		+ " switches in " + elapsed / 1000000 + " ms ("
+		+ (long) (rounds * 2 * 1e9 / elapsed) + " switches/s)");
     }
 
     private static final char dbgThread = 't';
@@ -518,6 +560,12 @@ public class KThread {
 
     private static ThreadQueue readyQueue = null;
 
+    /**
+     * The thread waiting in <tt>join()</tt> for this thread to finish. Owned
+     * by this thread, so that the joining thread can donate its priority.
+     */
+    private ThreadQueue joinQueue = null;
+
     private static KThread currentThread = null;
 
     private static KThread toBeDestroyed = null;
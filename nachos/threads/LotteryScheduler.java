@@ -41,7 +41,476 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
 	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return the lottery scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryThreadState getLotteryState(KThread thread) {
+		return (LotteryThreadState) getThreadState(thread);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot in a binary indexed tree of ticket
+	 * counts, so adding or removing a thread, changing its tickets, and
+	 * finding the holder of a given ticket all take O(log n) time.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryThreadState next = pickNextThread();
+
+			release();
+			if (next == null)
+				return null;
+
+			remove(next);
+			next.lotteryQueue = null;
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, without modifying the
+		 * state of this queue.
+		 * 
+		 * @return the thread holding the winning ticket, or <tt>null</tt> if
+		 * no thread is waiting.
+		 */
+		protected LotteryThreadState pickNextThread() {
+			if (totalTickets == 0)
+				return null;
+
+			long ticket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) totalTickets);
+			else
+				ticket = Math.min((long) (Lib.random() * totalTickets),
+						totalTickets - 1);
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int slot = 0;
+			for (int step = slots.length; step > 0; step >>= 1) {
+				if (slot + step <= slots.length
+						&& tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return slots[slot];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ("
+							+ slots[i].effectiveTickets + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Give a waiting thread a slot in the tree.
+		 */
+		void add(LotteryThreadState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = freeSlots[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+
+			adjust(slot, state.effectiveTickets);
+		}
+
+		/**
+		 * Free the slot held by a waiting thread.
+		 */
+		void remove(LotteryThreadState state) {
+			adjust(state.slot, -state.effectiveTickets);
+
+			slots[state.slot] = null;
+			freeSlots[numFree++] = state.slot;
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to the thread in the specified slot.
+		 */
+		void adjust(int slot, long delta) {
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree in linear time.
+		 */
+		private void grow() {
+			int capacity = Math.max(slots.length * 2, 1);
+
+			LotteryThreadState[] newSlots = new LotteryThreadState[capacity];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+
+			long[] newTree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				if (newSlots[i - 1] != null)
+					newTree[i] += newSlots[i - 1].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					newTree[parent] += newTree[i];
+			}
+
+			int[] newFreeSlots = new int[capacity];
+			for (int i = capacity - 1; i >= slots.length; i--)
+				newFreeSlots[numFree++] = i;
+
+			slots = newSlots;
+			tree = newTree;
+			freeSlots = newFreeSlots;
+		}
+
+		/**
+		 * Take this queue away from its owner, if it has one, withdrawing the
+		 * tickets transferred to it through this queue.
+		 */
+		void release() {
+			if (owner == null)
+				return;
+
+			LotteryThreadState oldOwner = owner;
+			owner = null;
+
+			oldOwner.transfer(-totalTickets);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/**
+		 * The thread that has acquired this queue, if tickets are transferred.
+		 */
+		LotteryThreadState owner = null;
+
+		/** The sum of the effective tickets of all waiting threads. */
+		long totalTickets = 0;
+
+		/** The waiting thread in each slot, or <tt>null</tt> if it is free. */
+		private LotteryThreadState[] slots = new LotteryThreadState[0];
+
+		/** A binary indexed tree over the tickets in each slot, 1-based. */
+		private long[] tree = new long[1];
+
+		/** A stack of the free slots. */
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+	}
+
+	/**
+	 * The lottery scheduling state of a thread. Its priority is its own number
+	 * of tickets; its effective tickets add the tickets of every thread waiting
+	 * on a queue it owns.
+	 * 
+	 * <p>
+	 * <tt>ThreadState</tt>'s constructor calls <tt>setPriority()</tt>, so the
+	 * fields of this class are deliberately left without initializers.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * capped at <tt>priorityMaximum</tt>.
+		 * 
+		 * @return the effective number of tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, priorityMaximum);
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 * 
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			long delta = (long) priority - this.priority;
+			if (delta == 0)
+				return;
+
+			this.priority = priority;
+
+			transfer(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(lotteryQueue == null);
+
+			lotteryQueue = waitQueue;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.transfer(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the associated thread now owns.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			waitQueue.release();
+
+			waitQueue.owner = this;
+
+			transfer(waitQueue.totalTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> effective tickets to the associated thread, and to
+		 * every thread it transfers tickets to, following the chain of queues
+		 * being waited on. A chain that loops back on itself (a deadlock) is
+		 * only followed once around.
+		 * 
+		 * @param delta the change in effective tickets.
+		 */
+		void transfer(long delta) {
+			if (delta == 0)
+				return;
+
+			long mark = ++numTransfers;
+
+			for (LotteryThreadState state = this; state != null
+					&& state.transferMark != mark;) {
+				state.transferMark = mark;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.lotteryQueue;
+				if (queue == null)
+					return;
+
+				queue.adjust(state.slot, delta);
+
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/** The effective tickets of the associated thread. */
+		long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		LotteryQueue lotteryQueue;
+
+		/** The slot the associated thread holds in <tt>lotteryQueue</tt>. */
+		int slot;
+
+		/** The last transfer that reached this thread. */
+		long transferMark;
+	}
+
+	/**
+	 * Test that tickets transferred through a queue add up, along a chain of
+	 * waiting threads, and are withdrawn when the queue changes hands; and
+	 * that over many lotteries each thread wins in proportion to its tickets.
+	 * 
+	 * <p>
+	 * The test uses its own scheduler and threads that are never forked, so
+	 * it does not depend on which scheduler the kernel is running.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		KThread d = new KThread().setName("d");
+		scheduler.setPriority(a, 1);
+		scheduler.setPriority(b, 5);
+		scheduler.setPriority(c, 10);
+		scheduler.setPriority(d, 2);
+
+		// b and c wait for a lock held by a, which waits for one held by d
+		ThreadQueue first = scheduler.newThreadQueue(true);
+		ThreadQueue second = scheduler.newThreadQueue(true);
+		first.acquire(a);
+		second.acquire(d);
+		second.waitForAccess(a);
+		first.waitForAccess(b);
+		first.waitForAccess(c);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 16);
+		Lib.assertTrue(scheduler.getEffectivePriority(d) == 18);
+
+		scheduler.setPriority(c, 20);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 26);
+		Lib.assertTrue(scheduler.getEffectivePriority(d) == 28);
+
+		// whichever of b and c wins the lock takes the other's tickets
+		KThread winner = first.nextThread();
+		KThread loser = (winner == b) ? c : b;
+		Lib.assertTrue(winner == b || winner == c);
+		Lib.assertTrue(scheduler.getEffectivePriority(winner) == 25);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(d) == 3);
+
+		Lib.assertTrue(first.nextThread() == loser);
+		Lib.assertTrue(first.nextThread() == null);
+		Lib.assertTrue(scheduler.getEffectivePriority(loser) == scheduler
+				.getPriority(loser));
+		Lib.assertTrue(second.nextThread() == a);
+		Lib.assertTrue(second.nextThread() == null);
+		Lib.assertTrue(scheduler.getEffectivePriority(d) == 2);
+
+		// a queue that does not transfer tickets holds lotteries among b (5
+		// tickets), c (20) and d (2)
+		ThreadQueue plain = scheduler.newThreadQueue(false);
+		KThread[] threads = { b, c, d };
+		int[] wins = new int[threads.length];
+		for (int i = 0; i < threads.length; i++)
+			plain.waitForAccess(threads[i]);
+
+		int numLotteries = 27000;
+		for (int n = 0; n < numLotteries; n++) {
+			KThread next = plain.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (next == threads[i])
+					wins[i]++;
+			}
+			plain.waitForAccess(next);
+		}
+
+		// allow five standard deviations either way
+		for (int i = 0; i < threads.length; i++) {
+			double p = scheduler.getPriority(threads[i]) / 27.0;
+			double expected = numLotteries * p;
+			Lib.assertTrue(Math.abs(wins[i] - expected) < 5 * Math
+					.sqrt(expected * (1 - p)),
+					"lottery not proportional to tickets");
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** The number of ticket transfers so far, used to detect loops. */
+	private long numTransfers = 0;
 }
@@ -0,0 +1,446 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread is at one of several levels, and the next thread to be dequeued
+ * is always the thread that has been waiting longest at the highest non-empty
+ * level. A thread starts at the top level. Once it has used up its allotment
+ * of processor time at its level, whether in one quantum or several, it is
+ * demoted one level; lower levels have longer allotments. A thread that goes
+ * to sleep (on a lock, a condition, a semaphore, the alarm or any I/O) is
+ * promoted one level when it is woken up, so threads that mostly wait, like
+ * an interactive shell, stay near the top while CPU-bound threads sink.
+ *
+ * <p>
+ * To keep CPU-bound threads from starving, every thread is periodically moved
+ * back up to its top level. The priority of a thread set with
+ * <tt>setPriority()</tt> is its top level; its effective priority is the level
+ * it is currently at. Priority is not transferred through locks or joins.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		quantum = Config.getInteger("MLFQScheduler.quantum", 500);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				100 * quantum);
+
+		Lib.assertTrue(quantum > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level feedback thread queue.
+	 *
+	 * @param transferPriority ignored; this scheduler does not transfer
+	 * priority.
+	 * @return a new multi-level feedback thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).level;
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+		state.priority = priority;
+		state.setLevel(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default priority for a new thread, which is also the top level.
+	 */
+	public static final int priorityDefault = 7;
+
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = 0;
+
+	/**
+	 * The maximum priority that a thread can have.
+	 */
+	public static final int priorityMaximum = 7;
+
+	/**
+	 * Return the number of ticks a thread may run at the specified level
+	 * before it is demoted. Each level down doubles the allotment.
+	 *
+	 * @param level the level.
+	 * @return the allotment at that level.
+	 */
+	long allotment(int level) {
+		return (long) quantum << (priorityMaximum - level);
+	}
+
+	/**
+	 * Return the number of boosts up to the specified time.
+	 *
+	 * @param time the time.
+	 */
+	private long boostEpoch(long time) {
+		return time / boostInterval;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list for every level.
+	 *
+	 * <p>
+	 * Boosts are applied lazily: a queue moves its waiting threads back to
+	 * their top levels the first time it is used after a boost, and a thread
+	 * that was not waiting anywhere is boosted when it next starts waiting.
+	 */
+	protected class FeedbackQueue extends ThreadQueue {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		FeedbackQueue() {
+			levels = new LinkedList[priorityMaximum - priorityMinimum + 1];
+			for (int i = 0; i < levels.length; i++)
+				levels[i] = new LinkedList<ThreadState>();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost(Machine.timer().getTime());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost(Machine.timer().getTime());
+			if (nonEmpty == 0)
+				return null;
+
+			int level = 31 - Integer.numberOfLeadingZeros(nonEmpty);
+			ThreadState next = levels[level].removeFirst();
+			if (levels[level].isEmpty())
+				nonEmpty &= ~(1 << level);
+
+			next.waitQueue = null;
+			next.runStart = Machine.timer().getTime();
+
+			return next.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = levels.length - 1; level >= 0; level--) {
+				for (Iterator<ThreadState> i = levels[level].iterator(); i
+						.hasNext();)
+					System.out.print(i.next().thread + " (" + level + ") ");
+			}
+			System.out.println();
+		}
+
+		void add(ThreadState state) {
+			levels[state.level].add(state);
+			nonEmpty |= 1 << state.level;
+		}
+
+		void remove(ThreadState state) {
+			levels[state.level].remove(state);
+			if (levels[state.level].isEmpty())
+				nonEmpty &= ~(1 << state.level);
+		}
+
+		/**
+		 * If there has been a boost since this queue was last used, move every
+		 * waiting thread back to its top level, keeping the order in which
+		 * they started waiting within each level.
+		 *
+		 * @param time the current time.
+		 */
+		private void boost(long time) {
+			long epoch = boostEpoch(time);
+			if (epoch <= boostEpoch)
+				return;
+
+			boostEpoch = epoch;
+			if (nonEmpty == 0)
+				return;
+
+			LinkedList<ThreadState> waiting = new LinkedList<ThreadState>();
+			for (int level = levels.length - 1; level >= 0; level--) {
+				waiting.addAll(levels[level]);
+				levels[level].clear();
+			}
+			nonEmpty = 0;
+
+			for (Iterator<ThreadState> i = waiting.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				state.boost(epoch);
+				add(state);
+			}
+		}
+
+		/** The waiting threads at each level, in FIFO order. */
+		private LinkedList<ThreadState>[] levels;
+
+		/** A bit for each level that has waiting threads. */
+		private int nonEmpty = 0;
+
+		/** The boost this queue last caught up with. */
+		private long boostEpoch = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its top level, its current level and
+	 * how much of the allotment at that level it has used.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 *
+		 * <p>
+		 * If the associated thread is the current thread, it is giving up the
+		 * processor, so it is charged for the time it has been running and
+		 * demoted if that uses up its allotment. Otherwise it is being woken
+		 * up after sleeping, and is promoted.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(FeedbackQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			long time = Machine.timer().getTime();
+			boost(boostEpoch(time));
+
+			if (thread == KThread.currentThread())
+				charge(time);
+			else if (runStart != -1 && level < priority) {
+				level++;
+				used = 0;
+			}
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Charge the associated thread for the time it has run since it was
+		 * dispatched or last charged, and demote it one level if that uses up
+		 * its allotment at its current level.
+		 *
+		 * @param time the current time.
+		 */
+		void charge(long time) {
+			used += time - Math.max(runStart, 0);
+			runStart = time;
+
+			if (used >= allotment(level) && level > priorityMinimum) {
+				level--;
+				used = 0;
+			}
+		}
+
+		/**
+		 * Move the associated thread to the specified level, with its full
+		 * allotment.
+		 *
+		 * @param level the new level.
+		 */
+		void setLevel(int level) {
+			if (waitQueue != null)
+				waitQueue.remove(this);
+
+			this.level = level;
+			used = 0;
+
+			if (waitQueue != null)
+				waitQueue.add(this);
+		}
+
+		/**
+		 * If the associated thread has not caught up with the specified boost,
+		 * move it back to its top level. The caller is responsible for
+		 * re-queueing it if it is waiting.
+		 *
+		 * @param epoch the current boost.
+		 */
+		void boost(long epoch) {
+			if (epoch <= boostEpoch)
+				return;
+
+			boostEpoch = epoch;
+			level = priority;
+			used = 0;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The top level of the associated thread. */
+		protected int priority = priorityDefault;
+
+		/** The level the associated thread is currently at. */
+		int level = priorityDefault;
+
+		/** The ticks used out of the allotment at the current level. */
+		long used = 0;
+
+		/** When the associated thread was last dispatched, or -1 if never. */
+		long runStart = -1;
+
+		/** The boost the associated thread last caught up with. */
+		long boostEpoch = 0;
+
+		/** The queue the associated thread is waiting on, if any. */
+		FeedbackQueue waitQueue = null;
+	}
+
+	/**
+	 * Test that a thread is demoted once it has used up its allotment, in one
+	 * quantum or over several, that it is promoted when it is woken up, and
+	 * that a boost moves every waiting thread back to its top level.
+	 *
+	 * <p>
+	 * The test uses its own scheduler and threads that are never forked, so
+	 * it does not depend on which scheduler the kernel is running. A thread
+	 * that is not running cannot give up the processor, so the test charges
+	 * it directly, as <tt>waitForAccess()</tt> does for the current thread,
+	 * and the next boost is applied to the queue directly rather than waited
+	 * for.
+	 */
+	public static void selfTest() {
+		MLFQScheduler scheduler = new MLFQScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread hog = new KThread().setName("hog");
+		KThread other = new KThread().setName("other");
+		ThreadState state = scheduler.getThreadState(hog);
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		queue.waitForAccess(hog);
+		Lib.assertTrue(scheduler.getEffectivePriority(hog) == priorityMaximum);
+		Lib.assertTrue(queue.nextThread() == hog);
+
+		// one tick short of the allotment is not enough to be demoted
+		long time = state.runStart + scheduler.allotment(priorityMaximum) - 1;
+		state.charge(time);
+		Lib.assertTrue(state.level == priorityMaximum);
+		state.charge(++time);
+		Lib.assertTrue(state.level == priorityMaximum - 1);
+
+		// the allotment one level down may be used up over several quanta
+		long allotment = scheduler.allotment(priorityMaximum - 1);
+		state.charge(time += allotment / 2);
+		Lib.assertTrue(state.level == priorityMaximum - 1);
+		state.charge(time += allotment - allotment / 2);
+		Lib.assertTrue(state.level == priorityMaximum - 2);
+		state.charge(time += scheduler.allotment(priorityMaximum - 2));
+		Lib.assertTrue(state.level == priorityMaximum - 3);
+
+		// hog is woken up, and promoted one level, before other, which has
+		// never run, starts waiting at the top level
+		queue.waitForAccess(hog);
+		Lib.assertTrue(state.level == priorityMaximum - 2);
+		queue.waitForAccess(other);
+		Lib.assertTrue(scheduler.getEffectivePriority(other) == priorityMaximum);
+
+		// hog is back at the top level after the next boost, behind other
+		long boost = (Machine.timer().getTime() / scheduler.boostInterval + 1)
+				* scheduler.boostInterval;
+		((FeedbackQueue) queue).boost(boost);
+		Lib.assertTrue(scheduler.getEffectivePriority(hog) == priorityMaximum);
+		Lib.assertTrue(queue.nextThread() == other);
+		Lib.assertTrue(queue.nextThread() == hog);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** The number of ticks in the allotment at the top level. */
+	private int quantum;
+
+	/** The number of ticks between boosts. */
+	private int boostInterval;
+}
@@ -129,8 +129,13 @@ public class PriorityScheduler extends Scheduler {
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
+
+			buckets = new TreeSet[priorityMaximum - priorityMinimum + 1];
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new TreeSet<ThreadState>();
 		}
 
 		public void waitForAccess(KThread thread) {
@@ -145,8 +150,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				release();
+				return null;
+			}
+
+			remove(next);
+			next.waitQueue = null;
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +171,68 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
+			for (int i = buckets.length - 1; i >= 0; i--) {
+				if (!buckets[i].isEmpty())
+					return buckets[i].first();
+			}
+
 			return null;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = buckets.length - 1; i >= 0; i--) {
+				for (ThreadState state : buckets[i])
+					System.out.print(state.thread + " ("
+							+ (i + priorityMinimum) + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Return the highest effective priority of any thread waiting on this
+		 * queue.
+		 * 
+		 * @return the highest waiting priority, or <tt>priorityMinimum - 1</tt>
+		 * if no thread is waiting.
+		 */
+		protected int getMaxWaitingPriority() {
+			for (int i = buckets.length - 1; i >= 0; i--) {
+				if (!buckets[i].isEmpty())
+					return i + priorityMinimum;
+			}
+
+			return priorityMinimum - 1;
+		}
+
+		/**
+		 * Add a waiting thread to the bucket for its effective priority.
+		 */
+		protected void add(ThreadState state) {
+			buckets[state.effectivePriority - priorityMinimum].add(state);
+		}
+
+		/**
+		 * Remove a waiting thread from the bucket for its effective priority.
+		 */
+		protected void remove(ThreadState state) {
+			buckets[state.effectivePriority - priorityMinimum].remove(state);
+		}
+
+		/**
+		 * Take this queue away from its owner, if it has one, withdrawing the
+		 * priority donated to it through this queue.
+		 */
+		protected void release() {
+			if (owner == null)
+				return;
+
+			ThreadState oldOwner = owner;
+			owner = null;
+
+			oldOwner.ownedQueues.remove(this);
+			oldOwner.updateEffectivePriority();
 		}
 
 		/**
@@ -170,6 +240,17 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that has acquired this queue, if priority is transferred.
+		 */
+		protected ThreadState owner = null;
+
+		/**
+		 * The waiting threads, bucketed by effective priority. Each bucket is
+		 * ordered by the time its threads started waiting.
+		 */
+		private TreeSet<ThreadState>[] buckets;
 	}
 
 	/**
@@ -179,7 +260,7 @@ public class PriorityScheduler extends Scheduler {
 	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
-	protected class ThreadState {
+	protected class ThreadState implements Comparable<ThreadState> {
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -207,8 +288,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +302,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +318,16 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitTime = numWaits++;
+
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null
+					&& effectivePriority > waitQueue.owner.effectivePriority)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +341,61 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			waitQueue.release();
+
+			waitQueue.owner = this;
+			ownedQueues.add(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread from its
+		 * own priority and the queues it owns. If it changed, move the thread
+		 * to its new bucket in the queue it is waiting on, and pass the change
+		 * on to the owner of that queue, and so on along the chain until some
+		 * thread's effective priority does not change.
+		 */
+		protected void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int newPriority = state.priority;
+				for (PriorityQueue queue : state.ownedQueues)
+					newPriority = Math.max(newPriority,
+							queue.getMaxWaitingPriority());
+
+				if (newPriority == state.effectivePriority)
+					return;
+
+				PriorityQueue queue = state.waitQueue;
+				if (queue == null) {
+					state.effectivePriority = newPriority;
+					return;
+				}
+
+				queue.remove(state);
+				state.effectivePriority = newPriority;
+				queue.add(state);
+
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/**
+		 * Order threads waiting at the same priority by when they started
+		 * waiting.
+		 */
+		public int compareTo(ThreadState other) {
+			if (waitTime < other.waitTime)
+				return -1;
+			else if (waitTime > other.waitTime)
+				return 1;
+			else
+				return 0;
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +403,101 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/** The priority-transferring queues the associated thread owns. */
+		protected HashSet<PriorityQueue> ownedQueues =
+				new HashSet<PriorityQueue>();
+
+		/** When the associated thread started waiting on its queue. */
+		protected long waitTime;
+	}
+
+	/**
+	 * Test that priority is donated through locks and through joins, that it
+	 * is passed along a chain of waiting threads, and that it is withdrawn
+	 * when the queue it was donated through changes hands.
+	 * 
+	 * <p>
+	 * The test uses its own scheduler and threads that are never forked, so
+	 * it does not depend on which scheduler the kernel is running.
+	 */
+	public static void selfTest() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread low = new KThread().setName("low");
+		KThread mid = new KThread().setName("mid");
+		KThread high = new KThread().setName("high");
+		scheduler.setPriority(low, 1);
+		scheduler.setPriority(mid, 3);
+		scheduler.setPriority(high, 6);
+
+		// a lock held by low, as Lock uses its queue
+		ThreadQueue lock = scheduler.newThreadQueue(true);
+		lock.acquire(low);
+		lock.waitForAccess(mid);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+		lock.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+		Lib.assertTrue(scheduler.getPriority(low) == 1);
+
+		// releasing the lock hands it, and mid's donation, to high
+		Lib.assertTrue(lock.nextThread() == high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(high) == 6);
+		Lib.assertTrue(lock.nextThread() == mid);
+		Lib.assertTrue(lock.nextThread() == null);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+
+		// a queue that does not transfer priority
+		ThreadQueue plain = scheduler.newThreadQueue(false);
+		plain.acquire(low);
+		plain.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+		Lib.assertTrue(plain.nextThread() == high);
+
+		// a join: the child acquires its join queue when it is forked, and
+		// the parent waits on it until the child finishes
+		ThreadQueue join = scheduler.newThreadQueue(true);
+		join.acquire(low);
+		join.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+		while (join.nextThread() != null)
+			;
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+
+		// high waits for a lock held by mid, which waits for one held by low
+		ThreadQueue first = scheduler.newThreadQueue(true);
+		ThreadQueue second = scheduler.newThreadQueue(true);
+		first.acquire(low);
+		second.acquire(mid);
+		first.waitForAccess(mid);
+		second.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 6);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+
+		// lowering high's priority lowers what it donates down the chain
+		scheduler.setPriority(high, 2);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+		scheduler.setPriority(high, 7);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 7);
+
+		Lib.assertTrue(second.nextThread() == high);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+		Lib.assertTrue(first.nextThread() == mid);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+
+		Machine.interrupt().restore(intStatus);
 	}
+
+	/** The number of times any thread has started waiting on a queue. */
+	private long numWaits = 0;
 }
@@ -0,0 +1,590 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to their
+ * tickets, like a lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Each thread waiting on a queue has a <i>stride</i>, inversely proportional
+ * to its effective tickets, and a <i>pass</i>. The next thread to be dequeued
+ * is always the thread with the smallest pass, and its pass is then advanced
+ * by its stride. Threads with twice as many tickets are therefore dequeued
+ * twice as often, and unlike a lottery, the schedule does not depend on the
+ * random number generator.
+ *
+ * <p>
+ * Tickets are transferred through locks and through joins, and add like
+ * lottery tickets.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getPriority();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getEffectivePriority();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with a single ticket. A thread with <i>n</i>
+	 * tickets has a stride of <tt>stride1 / n</tt>, but never less than 1.
+	 */
+	public static final long stride1 = 1L << 32;
+
+	/**
+	 * Return the stride that corresponds to the specified number of tickets.
+	 *
+	 * @param tickets a positive number of tickets.
+	 * @return the stride for that many tickets.
+	 */
+	static long stride(long tickets) {
+		return Math.max(stride1 / tickets, 1);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary
+	 * min-heap ordered by pass.
+	 *
+	 * <p>
+	 * The queue also keeps a global pass, which advances by the stride of the
+	 * queue's total tickets on every dequeue. A thread that joins the queue is
+	 * placed relative to the global pass, so time spent away from the queue
+	 * neither earns nor costs it anything.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+
+			release();
+			if (next == null)
+				return null;
+
+			globalPass += stride(totalTickets);
+			next.pass += stride(next.effectiveTickets);
+
+			remove(next);
+			next.waitQueue = null;
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			return size == 0 ? null : heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " (" + heap[i].pass + ") ");
+			System.out.println();
+		}
+
+		/**
+		 * Add a waiting thread to the heap, with a pass relative to the global
+		 * pass.
+		 */
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] newHeap = new ThreadState[Math.max(size * 2, 8)];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			state.pass = globalPass + state.remain;
+			state.heapIndex = size;
+			heap[size++] = state;
+			siftUp(state.heapIndex);
+
+			totalTickets += state.effectiveTickets;
+		}
+
+		/**
+		 * Remove a waiting thread from the heap, remembering how far its pass
+		 * is from the global pass.
+		 */
+		void remove(ThreadState state) {
+			state.remain = state.pass - globalPass;
+
+			int index = state.heapIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				heap[index] = last;
+				last.heapIndex = index;
+				siftDown(index);
+				siftUp(last.heapIndex);
+			}
+
+			totalTickets -= state.effectiveTickets;
+		}
+
+		/**
+		 * Change the effective tickets of a waiting thread from
+		 * <i>oldTickets</i> to <i>newTickets</i>, scaling the part of its
+		 * stride that it has yet to wait out.
+		 */
+		void adjust(ThreadState state, long oldTickets, long newTickets) {
+			long remain = state.pass - globalPass;
+			if (remain > 0) {
+				remain = (long) ((double) remain * stride(newTickets)
+						/ stride(oldTickets));
+			}
+			state.pass = globalPass + remain;
+
+			siftDown(state.heapIndex);
+			siftUp(state.heapIndex);
+
+			totalTickets += newTickets - oldTickets;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>:
+		 * it has a smaller pass or, on a tie, has been waiting longer. Passes
+		 * are compared by their difference, so they may wrap around.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			long diff = a.pass - b.pass;
+			if (diff != 0)
+				return diff < 0;
+
+			return a.waitTime < b.waitTime;
+		}
+
+		/**
+		 * Take this queue away from its owner, if it has one, withdrawing the
+		 * tickets transferred to it through this queue.
+		 */
+		void release() {
+			if (owner == null)
+				return;
+
+			ThreadState oldOwner = owner;
+			owner = null;
+
+			oldOwner.transfer(-totalTickets);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/**
+		 * The thread that has acquired this queue, if tickets are transferred.
+		 */
+		ThreadState owner = null;
+
+		/** The sum of the effective tickets of all waiting threads. */
+		long totalTickets = 0;
+
+		/** The pass that a thread with no remaining stride would have. */
+		long globalPass = 0;
+
+		/** The waiting threads, as a binary min-heap ordered by pass. */
+		private ThreadState[] heap = new ThreadState[0];
+
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread. This should include the thread's
+	 * tickets, its effective tickets, and its pass.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			setPriority(priorityDefault);
+			remain = stride(effectiveTickets);
+		}
+
+		/**
+		 * Return the number of tickets of the associated thread.
+		 *
+		 * @return the number of tickets of the associated thread.
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * capped at <tt>priorityMaximum</tt>.
+		 *
+		 * @return the effective number of tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, priorityMaximum);
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 *
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			long delta = (long) priority - this.priority;
+			if (delta == 0)
+				return;
+
+			this.priority = priority;
+
+			transfer(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitTime = ++numWaits;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.transfer(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue the associated thread now owns.
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			waitQueue.release();
+
+			waitQueue.owner = this;
+
+			transfer(waitQueue.totalTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> effective tickets to the associated thread, and to
+		 * every thread it transfers tickets to, following the chain of queues
+		 * being waited on. A chain that loops back on itself (a deadlock) is
+		 * only followed once around.
+		 *
+		 * @param delta the change in effective tickets.
+		 */
+		void transfer(long delta) {
+			if (delta == 0)
+				return;
+
+			long mark = ++numTransfers;
+
+			for (ThreadState state = this; state != null
+					&& state.transferMark != mark;) {
+				state.transferMark = mark;
+				long oldTickets = state.effectiveTickets;
+				state.effectiveTickets += delta;
+
+				StrideQueue queue = state.waitQueue;
+				if (queue == null)
+					return;
+
+				queue.adjust(state, oldTickets, state.effectiveTickets);
+
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The number of tickets of the associated thread. */
+		protected int priority;
+
+		/** The effective tickets of the associated thread. */
+		long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		StrideQueue waitQueue;
+
+		/** The pass of the associated thread in <tt>waitQueue</tt>. */
+		long pass;
+
+		/**
+		 * How far ahead of the global pass the associated thread was when it
+		 * last left a queue.
+		 */
+		long remain;
+
+		/** The index of the associated thread in its queue's heap. */
+		int heapIndex;
+
+		/** When the associated thread started waiting, to break ties. */
+		long waitTime;
+
+		/** The last transfer that reached this thread. */
+		long transferMark;
+	}
+
+	/**
+	 * Test that a waiting thread whose tickets change, directly or through a
+	 * transfer, has what it has yet to wait out scaled to its new stride;
+	 * that a thread leaving a queue keeps its distance from the global pass
+	 * when it rejoins; and that threads are dequeued exactly in proportion to
+	 * their tickets.
+	 *
+	 * <p>
+	 * The test uses its own scheduler and threads that are never forked, so
+	 * it does not depend on which scheduler the kernel is running.
+	 */
+	public static void selfTest() {
+		StrideScheduler scheduler = new StrideScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread x = new KThread().setName("x");
+		KThread y = new KThread().setName("y");
+		KThread z = new KThread().setName("z");
+		ThreadState xs = scheduler.getThreadState(x);
+		ThreadState ys = scheduler.getThreadState(y);
+
+		// a new thread waits out a whole stride
+		StrideQueue queue = (StrideQueue) scheduler.newThreadQueue(false);
+		queue.waitForAccess(x);
+		queue.waitForAccess(y);
+		Lib.assertTrue(xs.pass - queue.globalPass == stride(1));
+		Lib.assertTrue(ys.pass - queue.globalPass == stride(1));
+
+		scheduler.setPriority(y, 4);
+		Lib.assertTrue(ys.pass - queue.globalPass == stride(4));
+		Lib.assertTrue(xs.pass - queue.globalPass == stride(1));
+
+		// z, with 4 tickets, waits for a lock held by y
+		ThreadQueue lock = scheduler.newThreadQueue(true);
+		lock.acquire(y);
+		scheduler.setPriority(z, 4);
+		lock.waitForAccess(z);
+		Lib.assertTrue(ys.pass - queue.globalPass == stride(8));
+		Lib.assertTrue(queue.totalTickets == 9);
+
+		// y leaves one stride of 8 tickets further on, while the global pass
+		// moves one stride of 9
+		Lib.assertTrue(queue.nextThread() == y);
+		Lib.assertTrue(queue.globalPass == stride(9));
+		Lib.assertTrue(ys.remain == 2 * stride(8) - stride(9));
+
+		// the global pass moves on without y, which rejoins just as far ahead
+		// of it, and so ahead of x
+		Lib.assertTrue(queue.nextThread() == x);
+		queue.waitForAccess(x);
+		queue.waitForAccess(y);
+		Lib.assertTrue(ys.pass - queue.globalPass == 2 * stride(8) - stride(9));
+		Lib.assertTrue(queue.nextThread() == y);
+		Lib.assertTrue(queue.nextThread() == x);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Lib.assertTrue(lock.nextThread() == z);
+		Lib.assertTrue(scheduler.getEffectivePriority(y) == 4);
+
+		// with 1, 2 and 4 tickets, every 7 dequeues from a queue that does not
+		// transfer tickets give each thread exactly its share
+		ThreadQueue plain = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[3];
+		int[] tickets = { 1, 2, 4 };
+		int[] picks = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("stride " + tickets[i]);
+			scheduler.setPriority(threads[i], tickets[i]);
+			plain.waitForAccess(threads[i]);
+		}
+
+		for (int round = 1; round <= 1000; round++) {
+			for (int n = 0; n < 7; n++) {
+				KThread next = plain.nextThread();
+				for (int i = 0; i < threads.length; i++) {
+					if (next == threads[i])
+						picks[i]++;
+				}
+				plain.waitForAccess(next);
+			}
+
+			for (int i = 0; i < threads.length; i++)
+				Lib.assertTrue(picks[i] == round * tickets[i],
+						"stride not proportional to tickets");
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** The number of times a thread has started waiting on a queue. */
+	private long numWaits = 0;
+
+	/** The number of ticket transfers so far, used to detect loops. */
+	private long numTransfers = 0;
+}
@@ -52,6 +52,10 @@ public class ThreadedKernel extends Kernel {
 		Alarm.selfTest();
 		Condition2.selfTest();
 		Communicator.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		StrideScheduler.selfTest();
+		MLFQScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -94,4 +98,8 @@ public class ThreadedKernel extends Kernel {
 	private static Rider dummy6 = null;
 
 	private static ElevatorController dummy7 = null;
+
+	private static StrideScheduler dummy8 = null;
+
+	private static MLFQScheduler dummy9 = null;
 }
@@ -28,6 +28,8 @@ public class SynchConsole {
 			}
 		};
 		console.setInterruptHandlers(receiveHandler, sendHandler);
+
+		bufferedWrites = Config.getBoolean("SynchConsole.bufferedWrites", false);
 	}
 
 	/**
@@ -61,6 +63,39 @@ public class SynchConsole {
 		return value;
 	}
 
+	/**
+	 * Return as many of the bytes received as are available, up to
+	 * <i>length</i>, without blocking.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the index in <i>buf</i> of the first byte to store.
+	 * @param length the most bytes to return.
+	 * @return the number of bytes stored, which may be 0.
+	 */
+	public int readBytes(byte[] buf, int offset, int length) {
+		if (length <= 0)
+			return 0;
+
+		int n;
+		boolean intStatus = Machine.interrupt().disable();
+		readLock.acquire();
+
+		if (charAvailable) {
+			charAvailable = false;
+			readWait.P();
+
+			n = console.readBytes(buf, offset, length);
+			Lib.assertTrue(n > 0);
+		}
+		else {
+			n = 0;
+		}
+
+		readLock.release();
+		Machine.interrupt().restore(intStatus);
+		return n;
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to read this as a file.
 	 * 
@@ -87,6 +122,25 @@ public class SynchConsole {
 		writeLock.release();
 	}
 
+	/**
+	 * Send a block of bytes as one transfer. Blocks until the whole block has
+	 * been sent, which takes as long in simulated time as sending the bytes
+	 * one at a time, but only wakes this thread once.
+	 * 
+	 * @param buf the buffer holding the bytes to send.
+	 * @param offset the index of the first byte in <i>buf</i>.
+	 * @param length the number of bytes to send.
+	 */
+	public void writeBytes(byte[] buf, int offset, int length) {
+		if (length <= 0)
+			return;
+
+		writeLock.acquire();
+		console.writeBytes(buf, offset, length);
+		writeWait.P();
+		writeLock.release();
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
 	 * 
@@ -102,6 +156,12 @@ public class SynchConsole {
 
 	private boolean charAvailable = false;
 
+	/**
+	 * <tt>true</tt> if <tt>write()</tt> on the console's files sends each
+	 * call as a single block. Set by <tt>SynchConsole.bufferedWrites</tt>.
+	 */
+	private boolean bufferedWrites;
+
 	private SerialConsole console;
 
 	private Lock readLock = new Lock();
@@ -128,13 +188,13 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
+			int i = 0;
+			while (i < length) {
+				int n = SynchConsole.this.readBytes(buf, offset + i, length - i);
+				if (n == 0)
 					break;
 
-				buf[offset + i] = (byte) value;
+				i += n;
 			}
 
 			return i;
@@ -144,6 +204,11 @@ public class SynchConsole {
 			if (!canWrite)
 				return 0;
 
+			if (bufferedWrites) {
+				SynchConsole.this.writeBytes(buf, offset, length);
+				return length;
+			}
+
 			for (int i = 0; i < length; i++)
 				SynchConsole.this.writeByte(buf[offset + i]);
 
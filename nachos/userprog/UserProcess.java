@@ -161,51 +161,25 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-                if(vaddr < 0){
-                  return 0;
-                }
-                int left = length;
-                int amount = 0;
-                int cur_offset = offset;
                 int total_read = 0;
-                int paddr = -1;
-                int paddr_offset = Processor.offsetFromAddress(vaddr);
-                int vpn = Processor.pageFromAddress(vaddr);
-                for(int i = 0; i < pageTable.length; i++){
-                  if(pageTable[i].vpn == vpn && pageTable[i].valid){
-                    paddr = pageTable[i].ppn * pageSize + paddr_offset;
+                while(length > 0){
+                  // the page table is indexed by vpn, as Processor assumes
+                  int vpn = Processor.pageFromAddress(vaddr);
+                  int paddr_offset = Processor.offsetFromAddress(vaddr);
+                  if(vaddr < 0 || vpn >= pageTable.length || !pageTable[vpn].valid){
                     break;
                   }
-                }
-		// for now, just assume that virtual addresses equal physical addresses
-		if (paddr < 0 || paddr >= memory.length)
-			return 0;
-
-                amount = Math.min(left, (pageSize - paddr_offset));
-                System.arraycopy(memory, paddr, data, offset, amount);
-                total_read += amount;
-                cur_offset += amount;
-                left -= amount;
-                boolean notFound = true;
-                while(left > 0){
-                  vpn++;
-                  for(int i = 0; i < pageTable.length; i++){
-                    if(pageTable[i].vpn == vpn && pageTable[i].valid){
-                      paddr = pageTable[i].ppn * pageSize;
-                      notFound = false;
-                      break;
-                    }
-                  }
-                  
-                  if(notFound || paddr < 0 || paddr >= memory.length){
-                    return total_read;
+                  int paddr = pageTable[vpn].ppn * pageSize + paddr_offset;
+                  if(paddr < 0 || paddr >= memory.length){
+                    break;
                   }
-                  notFound = true;
-                  amount = Math.min(left, pageSize);
-                  System.arraycopy(memory, paddr, data, cur_offset, amount);
+                  int amount = Math.min(length, pageSize - paddr_offset);
+                  System.arraycopy(memory, paddr, data, offset, amount);
+                  pageTable[vpn].used = true;
+                  vaddr += amount;
+                  offset += amount;
+                  length -= amount;
                   total_read += amount;
-                  cur_offset += amount;
-                  left -= amount;
                 }
 
 		return total_read;
@@ -243,56 +217,66 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-                if(vaddr < 0){
-                  return 0;
-                }
-                int left = length;
-                int amount = 0;
-                int cur_offset = offset;
                 int total_write = 0;
-                int paddr = -1;
-                int paddr_offset = Processor.offsetFromAddress(vaddr);
-                int vpn = Processor.pageFromAddress(vaddr);
-                for(int i = 0; i < pageTable.length; i++){
-                  if(pageTable[i].vpn == vpn && pageTable[i].valid && pageTable[i].readOnly == false){
-                    paddr = pageTable[i].ppn * pageSize + paddr_offset;
-                  }
-                }
-
-		// for now, just assume that virtual addresses equal physical addresses
-		if (paddr < 0 || paddr >= memory.length)
-			return 0;
-
-                amount = Math.min(left, (pageSize - paddr_offset));
-                System.arraycopy(data, offset, memory, paddr, amount);
-                total_write += amount;
-                cur_offset += amount;
-                left -= amount;
-                boolean notFound = true;
-                while(left > 0){
-                  vpn++;
-                  for(int i = 0; i < pageTable.length; i++){
-                    if(pageTable[i].vpn == vpn && pageTable[i].valid && pageTable[i].readOnly == false){
-                      paddr = pageTable[i].ppn * pageSize;
-                      notFound = false;
-                      break;
-                    }
+                while(length > 0){
+                  // the page table is indexed by vpn, as Processor assumes
+                  int vpn = Processor.pageFromAddress(vaddr);
+                  int paddr_offset = Processor.offsetFromAddress(vaddr);
+                  if(vaddr < 0 || vpn >= pageTable.length || !pageTable[vpn].valid
+                      || pageTable[vpn].readOnly){
+                    break;
                   }
-                  
-                  if(notFound || paddr < 0 || paddr >= memory.length){
-                    return total_write;
+                  int paddr = pageTable[vpn].ppn * pageSize + paddr_offset;
+                  if(paddr < 0 || paddr >= memory.length){
+                    break;
                   }
-                  notFound = true;
-                  amount = Math.min(left, pageSize);
-                  System.arraycopy(data, cur_offset, memory, paddr, amount);
+                  int amount = Math.min(length, pageSize - paddr_offset);
+                  System.arraycopy(data, offset, memory, paddr, amount);
+                  pageTable[vpn].used = true;
+                  pageTable[vpn].dirty = true;
+                  vaddr += amount;
+                  offset += amount;
+                  length -= amount;
                   total_write += amount;
-                  cur_offset += amount;
-                  left -= amount;
                 }
 
 		return total_write;
+	}
+
+	/**
+	 * Find the physical address of a byte of this process's virtual memory,
+	 * so that a file can transfer directly to or from the page containing it.
+	 * The page stays resident until <tt>unpinVirtualPage()</tt> is called on
+	 * the same address, which must happen for every successful call.
+	 * 
+	 * @param vaddr the virtual address.
+	 * @param write <tt>true</tt> if the page will be written.
+	 * @return the physical address of <i>vaddr</i>, or -1 if it is not mapped,
+	 * or is read-only and <i>write</i> is set.
+	 */
+	protected int pinVirtualPage(int vaddr, boolean write) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= pageTable.length)
+			return -1;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || (write && entry.readOnly))
+			return -1;
 
-		
+		entry.used = true;
+		if (write)
+			entry.dirty = true;
+
+		return entry.ppn * pageSize + Processor.offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Allow the page pinned by <tt>pinVirtualPage()</tt> to be evicted again.
+	 * Pages never move without virtual memory, so this does nothing here.
+	 * 
+	 * @param vaddr the virtual address passed to <tt>pinVirtualPage()</tt>.
+	 */
+	protected void unpinVirtualPage(int vaddr) {
 	}
 
 	/**
@@ -426,6 +410,7 @@ public class UserProcess {
                                 count++;
 
 			}
+			Machine.autoGrader().coffPagesRead(section.getLength());
 		}   
                 track++;
                 int pages_left = numPages - count;
@@ -446,7 +431,7 @@ public class UserProcess {
           UserKernel.mutex.acquire();
           System.out.println("  Process[" + process_id + "] unloadSection");
           while(!used_pages.isEmpty()){
-            UserKernel.free_pages.add(used_pages.removeLast());
+            freePage(used_pages.removeLast());
           }
           System.out.println("  used page.size: " + used_pages.size());
 
@@ -454,6 +439,16 @@ public class UserProcess {
           UserKernel.mutex.release();
 	}
 
+	/**
+	 * Return a physical page this process was using to the free list. Called
+	 * by <tt>unloadSections()</tt> with <tt>UserKernel.mutex</tt> held.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	protected void freePage(int ppn) {
+		UserKernel.free_pages.add(ppn);
+	}
+
 	/**
 	 * Initialize the processor's registers in preparation for running the
 	 * program loaded into this process. Set the PC register to point at the
@@ -707,66 +702,26 @@ System.out.println(" File to be created:" + filename);
           if(fd < 0 || fd > 15 || buffer < 0 || fileTable[fd] == null || count < 0){
             return -1;
           } 
-          byte[] local_buffer = new byte[1024];
+          // transfer a page at a time, straight into physical memory
+          byte[] memory = Machine.processor().getMemory();
           int counter = 0;
           while(counter < count){
-            if((count - counter) >= 1024){
-              int readByte = 0;
-
-              readByte = fileTable[fd].read(local_buffer, 0, 1024);
-              
-              if(readByte == -1){
-                return -1;
-              }
-              else{
-                int writeByte = 0;
-                if(readByte < 1024){
-                  byte[] offset_buffer = new byte[readByte];
-                  for(int i = 0; i < readByte; i++){
-                    offset_buffer[i] = local_buffer[i];
-                  }
-                  writeByte = writeVirtualMemory(buffer + counter, offset_buffer);
-                  // assert out of memory error
-                  if(writeByte < readByte){
-                    return -1;
-                  }
-                  // --------------------
-                  counter += writeByte;
-                  return counter;
-                }
-                writeByte = writeVirtualMemory(buffer + counter, local_buffer); // out of memeory???
-                counter += writeByte;
-                // assert out of memory error
-                if(writeByte < 1024){
-                  return -1;
-                }
-                // ------------------------
-              }
+            int vaddr = buffer + counter;
+            int paddr = pinVirtualPage(vaddr, true);
+            if(paddr < 0){
+              return -1;
             }
+            int amount = Math.min(count - counter, pageSize - Processor.offsetFromAddress(vaddr));
+            int readByte = fileTable[fd].read(memory, paddr, amount);
+            unpinVirtualPage(vaddr);
 
-            else{
-              int readByte = 0;
-              int writeByte = 0;
-              readByte = fileTable[fd].read(local_buffer, 0, (count - counter));
-              
-              if(readByte == -1){
-                return -1;
-              }
-              else{
-                byte[] offset_buffer = new byte[readByte];
-                for(int i = 0; i < offset_buffer.length; i++){
-                  offset_buffer[i] = local_buffer[i];
-                }
-                writeByte = writeVirtualMemory(buffer + counter, offset_buffer);
-                // assert out of memory error
-                if(writeByte < readByte){
-                  return -1;
-                }
-                // -------------------------------------
-                counter += writeByte;
-
-                return counter;
-              }
+            if(readByte == -1){
+              return -1;
+            }
+            counter += readByte;
+            // end of file, or no more console input for now
+            if(readByte < amount){
+              return counter;
             }
           }
           return counter; // if counter == count
@@ -776,40 +731,68 @@ System.out.println(" File to be created:" + filename);
            if(fd < 0 || fd > 15 || buffer < 0 || fileTable[fd] == null || count < 0){
              return -1;
            }
-           byte [] local_buffer = new byte[1024];
+           // transfer a page at a time, straight out of physical memory
+           byte[] memory = Machine.processor().getMemory();
            int counter = 0;
            while(counter < count){
-             if((count - counter) >= 1024){
-               int readByte = readVirtualMemory(buffer + counter, local_buffer, 0, 1024);
-               if(readByte < 1024){
-                 return -1; // out of memory?
-               }
-
-               int writeByte = 0;
-               writeByte = fileTable[fd].write(local_buffer, 0, readByte);
-               if(writeByte == -1){
-                 return -1; // disk full or stream terminate
-               }
-               counter += writeByte;
+             int vaddr = buffer + counter;
+             int paddr = pinVirtualPage(vaddr, false);
+             if(paddr < 0){
+               return -1;
              }
-             else{
-               int readByte = readVirtualMemory(buffer + counter, local_buffer, 0, count - counter);
-               if(readByte < (count - counter)){
-                 return -1;
-               }
-               int writeByte = 0;
-               writeByte = fileTable[fd].write(local_buffer, 0, readByte);
-               // if not correctly write do not need to check less than readByte because it must return readByte 
-               if(writeByte == -1){
-                 return -1;
-               }
-               counter += writeByte;
+             int amount = Math.min(count - counter, pageSize - Processor.offsetFromAddress(vaddr));
+             int writeByte = fileTable[fd].write(memory, paddr, amount);
+             unpinVirtualPage(vaddr);
+
+             if(writeByte == -1){
+               return -1; // disk full or stream terminate
+             }
+             counter += writeByte;
+             if(writeByte < amount){
+               return counter;
              }
-           } 
+           }
        
            return counter;
         }
 
+        private int handleReadv(int fd, int iov, int iovcnt){
+          return handleVectored(fd, iov, iovcnt, true);
+        }
+
+        private int handleWritev(int fd, int iov, int iovcnt){
+          return handleVectored(fd, iov, iovcnt, false);
+        }
+
+        // scatter or gather over an array of struct iovec { void *base; int len; }
+        private int handleVectored(int fd, int iov, int iovcnt, boolean read){
+          if(iov < 0 || iovcnt < 0 || iovcnt > maxIovecs){
+            return -1;
+          }
+          byte[] vector = new byte[iovcnt * 8];
+          if(readVirtualMemory(iov, vector) < vector.length){
+            return -1;
+          }
+          int total = 0;
+          for(int i = 0; i < iovcnt; i++){
+            int base = Lib.bytesToInt(vector, i * 8);
+            int len = Lib.bytesToInt(vector, i * 8 + 4);
+            if(len < 0 || total + len < 0){
+              return -1;
+            }
+            int done = read ? handleRead(fd, base, len) : handleWrite(fd, base, len);
+            if(done == -1){
+              return -1;
+            }
+            total += done;
+            // end of file or stream, or a full disk; don't skip ahead
+            if(done < len){
+              break;
+            }
+          }
+          return total;
+        }
+
         private int handleClose(int fileDescriptor){
           if(fileDescriptor < 0 || fileDescriptor > 15 || fileTable[fileDescriptor] == null){
             return -1;
@@ -839,7 +822,7 @@ System.out.println(" File to be created:" + filename);
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -893,6 +876,16 @@ System.out.println(" File to be created:" + filename);
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -924,6 +917,10 @@ System.out.println(" File to be created:" + filename);
 			return handleClose(a0);
                 case syscallUnlink:
 			return handleUnlink(a0);
+                case syscallReadv:
+			return handleReadv(a0, a1, a2);
+                case syscallWritev:
+			return handleWritev(a0, a1, a2);
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -982,6 +979,9 @@ System.out.println(Processor.exceptionNames[cause]);
 
 	private static final int pageSize = Processor.pageSize;
 
+	/** The most <tt>iovec</tt> entries one readv() or writev() may take. */
+	private static final int maxIovecs = 1024;
+
 	private static final char dbgProcess = 'a';
 
         private OpenFile[] fileTable = new OpenFile[16];
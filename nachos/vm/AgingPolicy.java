@@ -0,0 +1,97 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * An approximation of least recently used replacement by aging. Every frame
+ * has an 8-bit counter; at each eviction every counter is shifted right, the
+ * page's used bit is shifted in at the top, and the used bit is cleared. The
+ * page with the smallest counter has gone the longest without use, and is
+ * evicted, a clean page winning a tie.
+ *
+ * <p>
+ * Nachos has no reference-bit daemon, so the counters age once per eviction
+ * rather than once per clock tick.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+		age = new int[numPhysPages];
+	}
+
+	public void pageLoaded(int ppn) {
+		// the page is about to be used by the faulting instruction
+		age[ppn] = 0x80;
+	}
+
+	public int pickVictim() {
+		int victim = -1;
+
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			TranslationEntry entry = VMKernel.IPT[ppn].entry;
+			if (entry == null || !entry.valid)
+				continue;
+
+			age[ppn] >>= 1;
+			if (entry.used) {
+				age[ppn] |= 0x80;
+				entry.used = false;
+			}
+
+			if (VMKernel.IPT[ppn].pins > 0)
+				continue;
+
+			if (victim == -1 || age[ppn] < age[victim]
+					|| (age[ppn] == age[victim] && !entry.dirty
+							&& VMKernel.IPT[victim].entry.dirty))
+				victim = ppn;
+		}
+
+		return victim;
+	}
+
+	/**
+	 * The pages with the smallest counters, as they would be after the next
+	 * aging, will be evicted first.
+	 */
+	public int[] nextVictims(int max) {
+		int[] next = new int[numPhysPages];
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			if (VMKernel.isEvictable(ppn)) {
+				next[ppn] = age[ppn] >> 1;
+				if (VMKernel.IPT[ppn].entry.used)
+					next[ppn] |= 0x80;
+			}
+			else {
+				next[ppn] = Integer.MAX_VALUE;
+			}
+		}
+
+		int[] victims = new int[max];
+		int count = 0;
+		while (count < max) {
+			int victim = -1;
+			for (int ppn = 0; ppn < numPhysPages; ppn++) {
+				if (next[ppn] != Integer.MAX_VALUE
+						&& (victim == -1 || next[ppn] < next[victim]))
+					victim = ppn;
+			}
+			if (victim == -1)
+				break;
+
+			victims[count++] = victim;
+			next[victim] = Integer.MAX_VALUE;
+		}
+
+		return Arrays.copyOf(victims, count);
+	}
+
+	private int numPhysPages;
+
+	private int[] age;
+}
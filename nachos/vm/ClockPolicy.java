@@ -0,0 +1,56 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * The clock algorithm. The hand sweeps the frames in order, giving every page
+ * whose used bit is set a second chance by clearing it, and evicts the first
+ * page whose used bit is already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public int pickVictim() {
+		while (true) {
+			int ppn = hand;
+			hand = (hand + 1) % numPhysPages;
+
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+			if (!VMKernel.IPT[ppn].entry.used)
+				return ppn;
+			VMKernel.IPT[ppn].entry.used = false;
+		}
+	}
+
+	/**
+	 * The hand will evict the pages with clear used bits in the order it
+	 * reaches them.
+	 */
+	public int[] nextVictims(int max) {
+		int[] victims = new int[max];
+		int count = 0;
+
+		for (int i = 0; i < numPhysPages && count < max; i++) {
+			int ppn = (hand + i) % numPhysPages;
+			if (VMKernel.isEvictable(ppn) && !VMKernel.IPT[ppn].entry.used)
+				victims[count++] = ppn;
+		}
+
+		return Arrays.copyOf(victims, count);
+	}
+
+	private int numPhysPages;
+
+	private int hand = 0;
+}
@@ -0,0 +1,79 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A kernel thread that writes dirty pages to swap before a page fault has to.
+ * After each fault takes a frame, the daemon asks the replacement policy for
+ * the next <tt>PageDaemon.cleanAhead</tt> frames it would evict, and writes
+ * the dirty pages among them to swap, one at a time, leaving them mapped. A
+ * fault that then evicts one of them frees its frame without a write, and the
+ * process that owns it keeps running during the write instead of waiting.
+ *
+ * <p>
+ * The daemon never frees frames itself, so it evicts nothing the policy would
+ * not, and it starts a write only while no fault is writing an evicted page,
+ * so a fault never waits behind it for a write of its own. A page dirtied
+ * again before it is evicted is written twice, which is why only the next few
+ * victims are cleaned. <tt>cleanAhead</tt> of 0 turns the daemon off.
+ */
+public class PageDaemon implements Runnable {
+	/**
+	 * Allocate a new page daemon. Use <tt>start()</tt> to start it.
+	 */
+	public PageDaemon() {
+		cleanAhead = Config.getInteger("PageDaemon.cleanAhead", 2);
+		Lib.assertTrue(cleanAhead >= 0);
+
+		needed = new Condition(UserKernel.mutex);
+	}
+
+	/**
+	 * Fork the daemon's thread, unless it is turned off.
+	 */
+	public void start() {
+		if (cleanAhead > 0)
+			new KThread(this).setName("page daemon").fork();
+	}
+
+	/**
+	 * Wake the daemon to look at the next victims again. Called after a fault
+	 * takes a frame, with <tt>UserKernel.mutex</tt> held.
+	 */
+	public void check() {
+		needed.wake();
+	}
+
+	public void run() {
+		UserKernel.mutex.acquire();
+
+		while (true) {
+			int ppn = nextDirtyVictim();
+
+			// the lock is released while the page is written
+			if (ppn == -1 || VMKernel.swapOutInProgress
+					|| !VMKernel.IPT[ppn].process.cleanPage(VMKernel.IPT[ppn].entry.vpn))
+				needed.sleep();
+		}
+	}
+
+	/**
+	 * Return the first dirty page among the frames the replacement policy
+	 * will evict next, or -1 if they are all clean.
+	 */
+	private int nextDirtyVictim() {
+		int[] victims = VMKernel.replacementPolicy.nextVictims(cleanAhead);
+		for (int i = 0; i < victims.length; i++) {
+			if (VMKernel.IPT[victims[i]].entry.dirty)
+				return victims[i];
+		}
+
+		return -1;
+	}
+
+	private int cleanAhead;
+
+	private Condition needed;
+}
@@ -0,0 +1,40 @@
+package nachos.vm;
+
+/**
+ * Chooses which physical page to evict when a page fault finds no free frame.
+ * The kernel uses the policy named by <tt>VMKernel.replacementPolicy</tt> in
+ * the Nachos configuration file.
+ *
+ * <p>
+ * Both methods are called with <tt>UserKernel.mutex</tt> held, after the TLB
+ * has been flushed, so the used and dirty bits of every entry in
+ * <tt>VMKernel.IPT</tt> are current.
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Note that a page has just been brought into a frame. <tt>IPT[ppn]</tt>
+	 * already names its process and translation entry.
+	 *
+	 * @param ppn the frame the page was loaded into.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * Choose a frame to evict. The frame must satisfy
+	 * <tt>VMKernel.isEvictable()</tt>; the caller guarantees that one does.
+	 *
+	 * @return the physical page number of the frame to evict.
+	 */
+	public int pickVictim();
+
+	/**
+	 * Return the frames that the coming calls to <tt>pickVictim()</tt> are
+	 * likely to choose, soonest first, without changing any state. The page
+	 * daemon writes the dirty pages among them to swap ahead of time, so that
+	 * a page fault evicting them does not have to.
+	 *
+	 * @param max the most frames to return.
+	 * @return evictable frames, soonest first.
+	 */
+	public int[] nextVictims(int max);
+}
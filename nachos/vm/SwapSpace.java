@@ -0,0 +1,195 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The swap file, divided into page-sized slots. A bitmap records which slots
+ * are allocated. Each process that swaps gets a contiguous run of slots, one
+ * for each of its virtual pages, so a process's pages sit together in the
+ * file in virtual page order. A run is freed when its process exits.
+ *
+ * <p>
+ * Because a run is contiguous, neighboring pages of a process can be read
+ * together; see <tt>SwapSpace.clusterPages</tt>.
+ *
+ * <p>
+ * Runs are placed first-fit, so freed space is reused before the file grows.
+ * When most of the file is free, <tt>compact()</tt> slides the remaining runs
+ * down to the start of the file and truncates it.
+ *
+ * <p>
+ * Every method must be called with <tt>UserKernel.mutex</tt> held, except
+ * that page faults read and write pages without it, counting themselves in
+ * <tt>readsInFlight</tt> and <tt>writesInFlight</tt>.
+ */
+public class SwapSpace {
+	/**
+	 * Create an empty swap file.
+	 *
+	 * @param name the name of the swap file.
+	 */
+	public SwapSpace(String name) {
+		clusterPages = Config.getInteger("SwapSpace.clusterPages", 8);
+		Lib.assertTrue(clusterPages > 0);
+
+		this.name = name;
+		file = ThreadedKernel.fileSystem.open(name, true);
+		Lib.assertTrue(file != null, "cannot create swap file " + name);
+	}
+
+	/**
+	 * Allocate a contiguous run of slots.
+	 *
+	 * @param length the number of slots.
+	 * @param owner the process the run belongs to; <tt>compact()</tt> asks it
+	 * to move its pages.
+	 * @return the first slot of the run.
+	 */
+	public int allocateRun(int length, VMProcess owner) {
+		Lib.assertTrue(length > 0);
+
+		int base = map.nextClearBit(0);
+		while (true) {
+			int end = map.nextSetBit(base);
+			if (end == -1 || end - base >= length)
+				break;
+			base = map.nextClearBit(end);
+		}
+
+		map.set(base, base + length);
+		runs.put(base, owner);
+		return base;
+	}
+
+	/**
+	 * Free a run allocated by <tt>allocateRun()</tt>.
+	 *
+	 * @param base the first slot of the run.
+	 * @param length the number of slots in the run.
+	 */
+	public void freeRun(int base, int length) {
+		Lib.assertTrue(runs.remove(base) != null);
+		map.clear(base, base + length);
+	}
+
+	/**
+	 * Read pages from consecutive slots, in one operation. Slots never written
+	 * read as zeros.
+	 */
+	public void read(int spn, byte[] buf, int offset, int pages) {
+		int amount = file.read(spn * pageSize, buf, offset, pages * pageSize);
+		Arrays.fill(buf, offset + Math.max(amount, 0), offset + pages
+				* pageSize, (byte) 0);
+	}
+
+	/**
+	 * Write pages to consecutive slots, in one operation.
+	 */
+	public void write(int spn, byte[] buf, int offset, int pages) {
+		file.write(spn * pageSize, buf, offset, pages * pageSize);
+		fileSlots = Math.max(fileSlots, spn + pages);
+	}
+
+	/**
+	 * Copy pages from consecutive slots to others, which may overlap them.
+	 */
+	public void copy(int from, int to, int pages) {
+		byte[] buf = new byte[pages * pageSize];
+		read(from, buf, 0, pages);
+		write(to, buf, 0, pages);
+	}
+
+	/**
+	 * If more than half of the swap file is free, move every run down to the
+	 * lowest free slots and truncate the file after the last one. Does
+	 * nothing while a page is being read from or written to swap without
+	 * <tt>UserKernel.mutex</tt>, since its slot may move.
+	 */
+	public void compact() {
+		int inUse = map.cardinality();
+		if (readsInFlight > 0 || writesInFlight > 0 || fileSlots <= 2 * inUse)
+			return;
+
+		TreeMap<Integer, VMProcess> moved = new TreeMap<Integer, VMProcess>();
+		int next = 0;
+		for (Iterator<Map.Entry<Integer, VMProcess>> i = runs.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<Integer, VMProcess> run = i.next();
+			int base = run.getKey();
+			VMProcess owner = run.getValue();
+			int length = owner.numSwapSlots();
+
+			// runs only move down, so copying in page order never
+			// overwrites a page before it has been moved
+			if (base != next)
+				owner.moveSwapRun(next);
+
+			moved.put(next, owner);
+			next += length;
+		}
+
+		runs = moved;
+		map.clear();
+		map.set(0, next);
+
+		// the file system can only truncate a file as it opens it
+		byte[] live = new byte[Math.min(next, fileSlots) * pageSize];
+		int amount = file.read(0, live, 0, live.length);
+		file.close();
+		file = ThreadedKernel.fileSystem.open(name, true);
+		if (amount > 0)
+			file.write(0, live, 0, amount);
+		fileSlots = (Math.max(amount, 0) + pageSize - 1) / pageSize;
+
+		Lib.debug(dbgVM, "swap file compacted to " + fileSlots + " pages");
+	}
+
+	/**
+	 * Close and remove the swap file.
+	 */
+	public void close() {
+		file.close();
+		ThreadedKernel.fileSystem.remove(name);
+	}
+
+	/**
+	 * The most pages a page fault reads from swap in one operation.
+	 */
+	public final int clusterPages;
+
+	/**
+	 * The number of pages being read from swap without
+	 * <tt>UserKernel.mutex</tt> held.
+	 */
+	public int readsInFlight = 0;
+
+	/**
+	 * The number of writes to swap in progress without
+	 * <tt>UserKernel.mutex</tt> held.
+	 */
+	public int writesInFlight = 0;
+
+	private String name;
+
+	private OpenFile file;
+
+	/** The number of slots the file currently spans. */
+	private int fileSlots = 0;
+
+	/** The allocated slots. */
+	private BitSet map = new BitSet();
+
+	/** The first slot of each run, and the process it belongs to. */
+	private TreeMap<Integer, VMProcess> runs = new TreeMap<Integer, VMProcess>();
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,145 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The 2Q algorithm of Johnson and Shasha. A page faulted in for the first
+ * time enters <tt>A1in</tt>, a FIFO queue of about a quarter of the frames;
+ * when it is evicted from there, only its identity is remembered, in
+ * <tt>A1out</tt>. A page that faults again while it is still remembered has
+ * proven it is reused, and enters <tt>Am</tt>, the main queue. Pages are
+ * evicted from <tt>A1in</tt> while it is over its share, so pages touched
+ * once, like a scan through a large array, cannot push the reused pages
+ * out.
+ *
+ * <p>
+ * Nachos sees only used bits, not every reference, so <tt>Am</tt> is
+ * managed as a clock rather than an exact LRU list.
+ */
+public class TwoQueuePolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new 2Q policy.
+	 */
+	public TwoQueuePolicy() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		maxIn = Math.max(1, numPhysPages / 4);
+		maxOut = Math.max(1, numPhysPages / 2);
+	}
+
+	public void pageLoaded(int ppn) {
+		// the frame may still be queued from before its process exited
+		in.remove(ppn);
+		main.remove(ppn);
+
+		if (out.remove(pageKey(ppn)))
+			main.add(ppn);
+		else
+			in.add(ppn);
+	}
+
+	public int pickVictim() {
+		int ppn = -1;
+
+		if (in.size() > maxIn || main.isEmpty())
+			ppn = evictIn();
+		if (ppn == -1)
+			ppn = evictMain();
+		if (ppn == -1)
+			ppn = evictIn();
+
+		Lib.assertTrue(ppn != -1);
+		return ppn;
+	}
+
+	/**
+	 * The oldest pages in <tt>A1in</tt> will be evicted while it is over its
+	 * share, then the pages in <tt>Am</tt> with clear used bits, in clock
+	 * order.
+	 */
+	public int[] nextVictims(int max) {
+		int[] victims = new int[max];
+		int count = 0;
+
+		int over = main.isEmpty() ? in.size() : in.size() - maxIn;
+		for (Iterator<Integer> i = in.iterator(); i.hasNext()
+				&& count < Math.min(over, max);) {
+			int ppn = i.next();
+			if (VMKernel.isEvictable(ppn))
+				victims[count++] = ppn;
+		}
+
+		for (Iterator<Integer> i = main.iterator(); i.hasNext() && count < max;) {
+			int ppn = i.next();
+			if (VMKernel.isEvictable(ppn) && !VMKernel.IPT[ppn].entry.used)
+				victims[count++] = ppn;
+		}
+
+		return Arrays.copyOf(victims, count);
+	}
+
+	/**
+	 * Evict the oldest unpinned page in <tt>A1in</tt>, and remember it in
+	 * <tt>A1out</tt>.
+	 */
+	private int evictIn() {
+		for (Iterator<Integer> i = in.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+
+			i.remove();
+			out.add(pageKey(ppn));
+			if (out.size() > maxOut) {
+				Iterator<Long> oldest = out.iterator();
+				oldest.next();
+				oldest.remove();
+			}
+			return ppn;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Evict a page from <tt>Am</tt>, giving pages used since the last sweep a
+	 * second chance.
+	 */
+	private int evictMain() {
+		for (int i = main.size() * 2; i > 0; i--) {
+			int ppn = main.removeFirst();
+			TranslationEntry entry = VMKernel.IPT[ppn].entry;
+			main.addLast(ppn);
+
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+			if (!entry.used) {
+				main.removeLast();
+				return ppn;
+			}
+			entry.used = false;
+		}
+
+		return -1;
+	}
+
+	private static long pageKey(int ppn) {
+		return ((long) VMKernel.IPT[ppn].process.process_id << 32)
+				| VMKernel.IPT[ppn].entry.vpn;
+	}
+
+	private int maxIn, maxOut;
+
+	/** Frames holding pages seen once, oldest first. */
+	private ArrayDeque<Integer> in = new ArrayDeque<Integer>();
+
+	/** Frames holding pages seen more than once, in clock order. */
+	private ArrayDeque<Integer> main = new ArrayDeque<Integer>();
+
+	/** Pages recently evicted from <tt>A1in</tt>, oldest first. */
+	private LinkedHashSet<Long> out = new LinkedHashSet<Long>();
+}
@@ -22,16 +22,21 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
-                victim = 0;
                 IPT = new Information[Machine.processor().getNumPhysPages()];
                 for(int i = 0; i < Machine.processor().getNumPhysPages(); i++){
-                  IPT[i] = new Information(null, null, false);
+                  IPT[i] = new Information(null, null);
                 }
-                swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
-                freeSwapPages = new LinkedList<Integer>();
-                num_sp = 0;
+
+                String policyName = Config.getString("VMKernel.replacementPolicy");
+                if (policyName != null)
+                  replacementPolicy = (PageReplacementPolicy) Lib.constructObject(policyName);
+                else
+                  replacementPolicy = new ClockPolicy();
+                swap = new SwapSpace("swapFile");
+                pageDaemon = new PageDaemon();
+                pageDaemon.start();
                 vmmutex = new Lock();
-                CV = new Condition(vmmutex);
+                pagingDone = new Condition(UserKernel.mutex);
                 pinCount = 0;
 	}
 
@@ -53,8 +58,9 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
-                swapFile.close();
-                ThreadedKernel.fileSystem.remove("swapFile");
+                Lib.debug(dbgVM, "Swap: operations " + numSwapOps
+                    + ", cleaned ahead " + numCleaned);
+                swap.close();
 		super.terminate();
 	}
 
@@ -63,31 +69,82 @@ public class VMKernel extends UserKernel {
 
 	private static final char dbgVM = 'v';
 
-        public static int victim;
+        /** Chooses the frame to evict when there is no free frame. */
+        public static PageReplacementPolicy replacementPolicy;
 
-        public static Information IPT[];
+        /**
+         * Paging counts for <tt>-d v</tt> that <tt>Stats</tt> has no field
+         * for. Pages read and written are counted in <tt>Stats</tt>, through
+         * the autograder.
+         */
+        public static int numSwapOps, numCleaned;
 
-        public static LinkedList<Integer> freeSwapPages;
+        public static Information IPT[];
 
-        public static OpenFile swapFile;
+        public static SwapSpace swap;
 
-        public static int num_sp;
+        public static PageDaemon pageDaemon;
      
         public static Lock vmmutex;
 
-        public static Condition CV;
+        /**
+         * Signalled, with <tt>UserKernel.mutex</tt> held, whenever a frame is
+         * unpinned or a write to swap finishes, for faults waiting for a
+         * frame to evict or for a page to reach swap.
+         */
+        public static Condition pagingDone;
 
+        /** The number of frames pinned at least once. */
         public static int pinCount;
 
+        /** <tt>true</tt> while a fault is writing an evicted page to swap. */
+        public static boolean swapOutInProgress;
+
+        /**
+         * Pin a frame, so that it is not evicted until every holder has
+         * unpinned it. Called either with <tt>UserKernel.mutex</tt> held, or
+         * right after checking that the page is resident, with nothing in
+         * between that could switch threads.
+         */
+        static void pin(int ppn){
+          if(IPT[ppn].pins++ == 0)
+            pinCount++;
+        }
+
+        /**
+         * Drop one pin of a frame and wake the faults waiting in
+         * <tt>pagingDone</tt>. Acquires <tt>UserKernel.mutex</tt> if the
+         * caller does not hold it.
+         */
+        static void unpin(int ppn){
+          boolean held = UserKernel.mutex.isHeldByCurrentThread();
+          if(!held)
+            UserKernel.mutex.acquire();
+          Lib.assertTrue(IPT[ppn].pins > 0);
+          if(--IPT[ppn].pins == 0)
+            pinCount--;
+          pagingDone.wakeAll();
+          if(!held)
+            UserKernel.mutex.release();
+        }
+
+        /**
+         * Return <tt>true</tt> if the frame holds a resident page that is not
+         * pinned, so that it may be evicted.
+         */
+        static boolean isEvictable(int ppn){
+          return IPT[ppn].pins == 0 && IPT[ppn].entry != null && IPT[ppn].entry.valid;
+        }
+
         protected class Information{
           public VMProcess process;
           public TranslationEntry entry;
-          public boolean pin;
+          /** How many holders have the frame pinned. */
+          public int pins = 0;
 
-          public Information(VMProcess process, TranslationEntry entry, boolean pin){
+          public Information(VMProcess process, TranslationEntry entry){
             this.process = process;
             this.entry = entry;
-            this.pin = pin;
           }           
         }
 }
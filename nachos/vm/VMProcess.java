@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +24,9 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+
+		if (Machine.processor().hasTLB())
+			flushTLB();
 	}
 
 	/**
@@ -29,7 +34,63 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		// with a TLB, entries are loaded on demand by handleTLBMiss()
+		if (!Machine.processor().hasTLB())
+			super.restoreState();
+	}
+
+	/**
+	 * Invalidate every TLB entry, saving its used and dirty bits in the page
+	 * table first.
+	 */
+	protected void flushTLB() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (entry.valid) {
+				saveTLBEntry(entry);
+				entry.valid = false;
+				processor.writeTLBEntry(i, entry);
+			}
+		}
+	}
+
+	/**
+	 * Copy the used and dirty bits of an entry removed from the TLB back to
+	 * this process's page table.
+	 * 
+	 * @param entry the entry that was in the TLB.
+	 */
+	private void saveTLBEntry(TranslationEntry entry) {
+		if (!entry.valid)
+			return;
+
+		TranslationEntry pte = pageTable[entry.vpn];
+		if (pte.valid && pte.ppn == entry.ppn) {
+			pte.used |= entry.used;
+			pte.dirty |= entry.dirty;
+		}
+	}
+
+	/**
+	 * Handle a TLB miss by loading the page table entry for the faulting
+	 * address into a TLB entry chosen by the processor, first bringing the
+	 * page into memory if it is not resident.
+	 * 
+	 * @param badVaddr the address that missed in the TLB.
+	 */
+	protected void handleTLBMiss(int badVaddr) {
+		int vpn = Processor.pageFromAddress(badVaddr);
+		if (vpn >= pageTable.length) {
+			super.handleException(Processor.exceptionTLBMiss);
+			return;
+		}
+
+		if (!pageTable[vpn].valid)
+			handlePageFault(badVaddr);
+
+		saveTLBEntry(Machine.processor().writeTLBEntry(pageTable[vpn]));
 	}
 
 	/**
@@ -43,6 +104,17 @@ public class VMProcess extends UserProcess {
                 for(int i = 0; i < numPages; i++){
                   pageTable[i] = new TranslationEntry(i, i, false, false, false, false);
                 }
+                // which section each page is demand-loaded from, if any
+                pageSection = new CoffSection[numPages];
+                for(int s = 0; s < coff.getNumSections(); s++){
+                  CoffSection section = coff.getSection(s);
+                  for(int i = 0; i < section.getLength(); i++){
+                    pageSection[section.getFirstVPN() + i] = section;
+                  }
+                }
+                swapped = new boolean[numPages];
+                writing = new boolean[numPages];
+                readAhead = new byte[numPages][];
 		// load sections
 		return true;
 		//return super.loadSections();
@@ -52,7 +124,74 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		// the page daemon's frames are still in used_pages, so it must finish
+		// with them, and not start on another, before they are freed
+		UserKernel.mutex.acquire();
+		exiting = true;
+		while (numWriting > 0)
+			VMKernel.pagingDone.sleep();
+		UserKernel.mutex.release();
+
 		super.unloadSections();
+
+		UserKernel.mutex.acquire();
+		// another fault may still be writing one of this process's pages
+		// into its run
+		while (numWriting > 0)
+			VMKernel.pagingDone.sleep();
+
+		Arrays.fill(readAhead, null);
+		if (swapBase != -1) {
+			VMKernel.swap.freeRun(swapBase, numSwapSlots());
+			swapBase = -1;
+			VMKernel.swap.compact();
+		}
+		UserKernel.mutex.release();
+	}
+
+	/**
+	 * Forget which page the frame held, so that it is neither evicted nor
+	 * cleaned by the page daemon while it is free.
+	 */
+	protected void freePage(int ppn) {
+		VMKernel.IPT[ppn].process = null;
+		VMKernel.IPT[ppn].entry = null;
+		super.freePage(ppn);
+	}
+
+	/**
+	 * Return the number of swap slots this process needs, one for each of its
+	 * virtual pages.
+	 */
+	int numSwapSlots() {
+		return pageTable.length;
+	}
+
+	/**
+	 * Return the swap slot of a virtual page, allocating this process's run of
+	 * swap slots the first time one of its pages is swapped out. Must be
+	 * called with <tt>UserKernel.mutex</tt> held.
+	 * 
+	 * @param vpn the virtual page.
+	 * @return the swap slot.
+	 */
+	int swapSlot(int vpn) {
+		if (swapBase == -1)
+			swapBase = VMKernel.swap.allocateRun(numSwapSlots(), this);
+
+		return swapBase + vpn;
+	}
+
+	/**
+	 * Move this process's run of swap slots to a lower position. Called by <tt>SwapSpace.compact()</tt>.
+	 * 
+	 * @param newBase the new first slot of the run.
+	 */
+	void moveSwapRun(int newBase) {
+		Lib.assertTrue(newBase < swapBase);
+
+		VMKernel.swap.copy(swapBase, newBase, numSwapSlots());
+		swapBase = newBase;
 	}
 
         public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
@@ -80,16 +219,14 @@ public class VMProcess extends UserProcess {
                   return total_read;
                 }
                 if(pageTable[vpn].valid){
-                  VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                  VMKernel.pinCount++;
+                  VMKernel.pin(pageTable[vpn].ppn);
                   pageTable[vpn].used = true;
                   paddr = pageTable[vpn].ppn * pageSize + paddr_offset; // if paddr but not good used bit set?????
                 }
                 else{
                   handlePageFault(vaddr); // an error may occur??????
                   if(pageTable[vpn].valid){
-                    VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                    VMKernel.pinCount++;
+                    VMKernel.pin(pageTable[vpn].ppn);
                     pageTable[vpn].used = true;
                     paddr = pageTable[vpn].ppn * pageSize + paddr_offset;
                   }
@@ -100,18 +237,14 @@ public class VMProcess extends UserProcess {
                 }
 		// for now, just assume that virtual addresses equal physical addresses
 		if (paddr < 0 || paddr >= memory.length){
-                        VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                        VMKernel.pinCount--;
-                        VMKernel.CV.wake();
+                        VMKernel.unpin(pageTable[vpn].ppn);
                         VMKernel.vmmutex.release();
 			return 0;
                 }
 
                 amount = Math.min(left, (pageSize - paddr_offset));
                 System.arraycopy(memory, paddr, data, offset, amount);
-                VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                VMKernel.pinCount--;
-                VMKernel.CV.wake();
+                VMKernel.unpin(pageTable[vpn].ppn);
                 total_read += amount;
                 cur_offset += amount;
                 left -= amount;
@@ -122,8 +255,7 @@ public class VMProcess extends UserProcess {
                     return total_read;
                   }
                   if(pageTable[vpn].valid){
-                    VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                    VMKernel.pinCount++;
+                    VMKernel.pin(pageTable[vpn].ppn);
 //System.out.println("b");
                     pageTable[vpn].used = true;
                     paddr = pageTable[vpn].ppn * pageSize;
@@ -132,8 +264,7 @@ public class VMProcess extends UserProcess {
                     vaddr = Processor.makeAddress(vpn, 0);
                     handlePageFault(vaddr); // an error may occurrrrrr?????
                     if(pageTable[vpn].valid){  // valid means correct?????
-                      VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                      VMKernel.pinCount++;
+                      VMKernel.pin(pageTable[vpn].ppn);
 //System.out.println("a");
                       pageTable[vpn].used = true;
                       paddr = pageTable[vpn].ppn * pageSize;
@@ -145,18 +276,13 @@ public class VMProcess extends UserProcess {
                   }
                   
                   if(paddr < 0 || paddr >= memory.length){
-                    VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                    VMKernel.pinCount--;
-                    VMKernel.CV.wake();
+                    VMKernel.unpin(pageTable[vpn].ppn);
                     VMKernel.vmmutex.release();
                     return total_read;
                   }
                   amount = Math.min(left, pageSize);
                   System.arraycopy(memory, paddr, data, cur_offset, amount);
-                  VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                  VMKernel.pinCount--;
-//System.out.println("jkafahkjfhadjkfhdashgasfbvsdfbasdfasd");
-                  VMKernel.CV.wake();
+                  VMKernel.unpin(pageTable[vpn].ppn);
                   total_read += amount;
                   cur_offset += amount;
                   left -= amount;
@@ -192,8 +318,7 @@ public class VMProcess extends UserProcess {
                 }
 
                 if(pageTable[vpn].valid){
-                  VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                  VMKernel.pinCount++;
+                  VMKernel.pin(pageTable[vpn].ppn);
 //System.out.println("c");
                   if(pageTable[vpn].readOnly == false){
                     paddr = pageTable[vpn].ppn * pageSize + paddr_offset;
@@ -204,8 +329,7 @@ public class VMProcess extends UserProcess {
                   handlePageFault(vaddr); // an error may occur??????
                   if(pageTable[vpn].valid){
                     if(pageTable[vpn].readOnly == false){
-                      VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                      VMKernel.pinCount++;
+                      VMKernel.pin(pageTable[vpn].ppn);
 //System.out.println("d");
                       paddr = pageTable[vpn].ppn * pageSize + paddr_offset;
                       pageTable[vpn].used = true;
@@ -224,9 +348,7 @@ public class VMProcess extends UserProcess {
 
 		// for now, just assume that virtual addresses equal physical addresses
 		if (paddr < 0 || paddr >= memory.length){
-                        VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                        VMKernel.pinCount--;
-                        VMKernel.CV.wake();
+                        VMKernel.unpin(pageTable[vpn].ppn);
                         VMKernel.vmmutex.release();
 			return 0;
                 }
@@ -236,9 +358,7 @@ public class VMProcess extends UserProcess {
                 if(amount > 0){
                   pageTable[vpn].dirty = true;
                 }
-                VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                VMKernel.pinCount--;
-                VMKernel.CV.wake();
+                VMKernel.unpin(pageTable[vpn].ppn);
                 total_write += amount;
                 cur_offset += amount;
                 left -= amount;
@@ -250,8 +370,7 @@ public class VMProcess extends UserProcess {
                   }
                   if(pageTable[vpn].valid){
                     if(pageTable[vpn].readOnly == false){
-                      VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                      VMKernel.pinCount++;
+                      VMKernel.pin(pageTable[vpn].ppn);
                       paddr = pageTable[vpn].ppn * pageSize;
                       pageTable[vpn].used = true; 
                     }
@@ -265,8 +384,7 @@ public class VMProcess extends UserProcess {
                     handlePageFault(vaddr); // an error may occur??????
                     if(pageTable[vpn].valid){
                       if(pageTable[vpn].readOnly == false){
-                        VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-                        VMKernel.pinCount++;
+                        VMKernel.pin(pageTable[vpn].ppn);
                         paddr = pageTable[vpn].ppn * pageSize;
                         pageTable[vpn].used = true; 
                       }
@@ -282,9 +400,7 @@ public class VMProcess extends UserProcess {
                   }
                   
                   if(paddr < 0 || paddr >= memory.length){
-                    VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                    VMKernel.pinCount--;
-                    VMKernel.CV.wake();
+                    VMKernel.unpin(pageTable[vpn].ppn);
                     VMKernel.vmmutex.release();
                     return total_write;
                   }
@@ -293,9 +409,7 @@ public class VMProcess extends UserProcess {
                   if(amount > 0){
                     pageTable[vpn].dirty = true;
                   }
-                  VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-                  VMKernel.pinCount--;
-                  VMKernel.CV.wake();
+                  VMKernel.unpin(pageTable[vpn].ppn);
                   total_write += amount;
                   cur_offset += amount;
                   left -= amount;
@@ -307,162 +421,313 @@ public class VMProcess extends UserProcess {
 		
 	}
 
+	/**
+	 * Bring the page into memory if it is not resident, and pin it there so
+	 * that it is not evicted while a file transfers to or from it.
+	 */
+	protected int pinVirtualPage(int vaddr, boolean write) {
+		VMKernel.vmmutex.acquire();
+
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= pageTable.length) {
+			VMKernel.vmmutex.release();
+			return -1;
+		}
+
+		if (!pageTable[vpn].valid)
+			handlePageFault(vaddr);
+
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || (write && entry.readOnly)) {
+			VMKernel.vmmutex.release();
+			return -1;
+		}
+
+		VMKernel.pin(entry.ppn);
+		entry.used = true;
+		if (write)
+			entry.dirty = true;
+
+		VMKernel.vmmutex.release();
+		return entry.ppn * pageSize + Processor.offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Unpin the page, and wake up a page fault waiting for a page to evict.
+	 * This does not take <tt>VMKernel.vmmutex</tt>, whose holder may be that
+	 * fault.
+	 */
+	protected void unpinVirtualPage(int vaddr) {
+		VMKernel.unpin(pageTable[Processor.pageFromAddress(vaddr)].ppn);
+	}
+
+
+	/**
+	 * Bring the page containing the faulting address into memory: from swap
+	 * if it was swapped out, from its COFF section if it has never been
+	 * written, and zero-filled otherwise.
+	 * 
+	 * <p>
+	 * A page read from swap is read together with the swapped-out pages next
+	 * to it, up to <tt>SwapSpace.clusterPages</tt> in all, since a process's
+	 * slots are contiguous. The neighbors are kept in <tt>readAhead</tt>, so
+	 * that their faults need no I/O.
+	 * 
+	 * <p>
+	 * <tt>UserKernel.mutex</tt> is only held while a frame is picked and while
+	 * the new page is installed. The frame is pinned in between, so the page
+	 * can be read in without the lock, just as an evicted page is written out
+	 * by <tt>swapOut()</tt>.
+	 * 
+	 * @param badVaddr the faulting address.
+	 */
+	protected void handlePageFault(int badVaddr) {
+		// the replacement policy needs current used/dirty bits, and may evict
+		// a page the TLB still maps
+		if (Machine.processor().hasTLB())
+			flushTLB();
+
+		int vpn = Processor.pageFromAddress(badVaddr);
+		if (vpn >= pageTable.length)
+			return;
+
+		UserKernel.mutex.acquire();
+		// the page's slot is not current until its write finishes
+		while (writing[vpn])
+			VMKernel.pagingDone.sleep();
+
+		int ppn = allocateFrame();
+		used_pages.add(ppn);
+
+		byte[] cached = readAhead[vpn];
+		readAhead[vpn] = null;
+		int first = vpn, last = vpn, spn = -1;
+		if (swapped[vpn] && cached == null) {
+			int cluster = VMKernel.swap.clusterPages;
+			while (last - first + 1 < cluster && last + 1 < pageTable.length
+					&& isSwappedOut(last + 1))
+				last++;
+			while (last - first + 1 < cluster && first > 0
+					&& isSwappedOut(first - 1))
+				first--;
+
+			spn = swapSlot(first);
+			VMKernel.swap.readsInFlight++;
+		}
+		UserKernel.mutex.release();
+
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = Processor.makeAddress(ppn, 0);
+		TranslationEntry entry;
+		byte[] cluster = null;
 
-        protected void handlePageFault(int badVaddr){
-                UserKernel.mutex.acquire();
-                int badVpn = Processor.pageFromAddress(badVaddr);
-                int coffVpn = 0;
-		for (int s = 0; s < coff.getNumSections(); s++) {
-			CoffSection section = coff.getSection(s);
-
-			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-					+ " section (" + section.getLength() + " pages)");
-                        
-                        
-			for (int i = 0; i < section.getLength(); i++) {
-				int vpn = section.getFirstVPN() + i;
-                                coffVpn = vpn;
-                                if(vpn == badVpn){
-                                  int ppn = 0;
-				  // for now, just assume virtual addresses=physical addresses
-				  if(!UserKernel.free_pages.isEmpty()){
-				    ppn = UserKernel.free_pages.removeLast();
-                                  }
-                                  else{ 
-                                    while(true){
-                                      // add lock tomorrow
-                                      if(VMKernel.IPT[VMKernel.victim].pin == true){
-//System.out.println(VMKernel.pinCount);
-                                        if(VMKernel.pinCount == Machine.processor().getNumPhysPages()){
-                                          VMKernel.CV.sleep();
-                                        } // if or while?????
-                                        VMKernel.victim = (VMKernel.victim + 1) % Machine.processor().getNumPhysPages();
-                                        continue;
-                                      }
-                                      if(VMKernel.IPT[VMKernel.victim].entry.used == false){
-                                        break;
-                                      }
-                                      VMKernel.IPT[VMKernel.victim].entry.used = false;
-                                      VMKernel.victim = (VMKernel.victim + 1) % Machine.processor().getNumPhysPages();
-                                    }
-                                    int toEvict = VMKernel.victim;
-                                    VMKernel.victim = (VMKernel.victim + 1) % Machine.processor().getNumPhysPages();
-                                    if(VMKernel.IPT[toEvict].entry.dirty){
-                                      int spn = 0;
-                                      if(!VMKernel.freeSwapPages.isEmpty()){
-                                        spn = VMKernel.freeSwapPages.removeLast();
-                                      }
-                                      else{
-                                        spn = VMKernel.num_sp;
-                                        VMKernel.num_sp++;
-                                      }
-                                      VMKernel.swapFile.write(spn * Processor.pageSize, Machine.processor().getMemory(), Processor.makeAddress(VMKernel.IPT[toEvict].entry.ppn, 0), Processor.pageSize);
-                                      
-                                      VMKernel.IPT[toEvict].entry.vpn = spn;
-                                      //swap out
-                                      //spn
-                                    }
-                                    VMKernel.IPT[toEvict].process.used_pages.remove(new Integer(VMKernel.IPT[toEvict].entry.ppn)); //   ??????????????? remove   pages  actuall physicalllll
-                                    VMKernel.IPT[toEvict].entry.valid = false;
-                                    ppn = VMKernel.IPT[toEvict].entry.ppn;
-                                  }
-                                  used_pages.add(ppn);
-                                  if(!pageTable[vpn].dirty){
-				    section.loadPage(i, ppn); // this load to PMem?
-                                    if(section.isReadOnly()){
-                                      pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, true, false);
-                                    }
-                                    else{    
-                                      pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, false);
-                                    }
-                                  }
-                                  else{
-                                    // swap in
-                                    VMKernel.swapFile.read(pageTable[vpn].vpn * Processor.pageSize, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Processor.pageSize);
-                                    VMKernel.freeSwapPages.add(pageTable[vpn].vpn);
-                                    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, true);
-                                  }
-                                  VMKernel.IPT[ppn].process = this;
-                                  VMKernel.IPT[ppn].entry = pageTable[vpn];
-                                }
+		if (swapped[vpn]) {
+			if (cached == null) {
+				cluster = new byte[(last - first + 1) * pageSize];
+				VMKernel.swap.read(spn, cluster, 0, last - first + 1);
+				Machine.autoGrader().swapPagesRead(last - first + 1);
+				VMKernel.numSwapOps++;
+				cached = Arrays.copyOfRange(cluster, (vpn - first) * pageSize,
+						(vpn - first + 1) * pageSize);
 			}
-		} 
+			System.arraycopy(cached, 0, memory, paddr, pageSize);
 
-                for(int i = coffVpn + 1; i < numPages; i++){
-                  int vpn = i;
+			// clean, since its copy in swap is still current
+			entry = new TranslationEntry(vpn, ppn, true, false, true, false);
+		}
+		else if (pageSection[vpn] != null) {
+			CoffSection section = pageSection[vpn];
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			Machine.autoGrader().coffPagesRead(1);
+			entry = new TranslationEntry(vpn, ppn, true, section.isReadOnly(),
+					true, false);
+		}
+		else {
+			// stack or arguments
+			Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
+			entry = new TranslationEntry(vpn, ppn, true, false, true, false);
+		}
 
-                  if(vpn == badVpn){
-                    int ppn = 0;
-                    if(!UserKernel.free_pages.isEmpty()){
-		      ppn = UserKernel.free_pages.removeLast();
-                    }
-                    else{
-                      while(true){
-                        // add lock tomorrow
-                        if(VMKernel.IPT[VMKernel.victim].pin == true){
-//System.out.println(VMKernel.pinCount);
-                          if(VMKernel.pinCount == Machine.processor().getNumPhysPages()){
-                            VMKernel.CV.sleep();
-                          } // if or while????? VMKernel.vmmutex.acquire();
-                          VMKernel.victim = (VMKernel.victim + 1) % Machine.processor().getNumPhysPages();
-                          continue;
-                        }
-                        if(VMKernel.IPT[VMKernel.victim].entry.used == false){
-                          break;
-                        }
-                        VMKernel.IPT[VMKernel.victim].entry.used = false;
-                        VMKernel.victim = (VMKernel.victim + 1) % Machine.processor().getNumPhysPages();
-                      }
-               
-                      int toEvict = VMKernel.victim;
-                      VMKernel.victim = (VMKernel.victim + 1) % Machine.processor().getNumPhysPages();
-                      if(VMKernel.IPT[toEvict].entry.dirty){
-                         int spn = 0;
-                         if(!VMKernel.freeSwapPages.isEmpty()){
-                           spn = VMKernel.freeSwapPages.removeLast();
-                         }
-                         else{
-                           spn = VMKernel.num_sp;
-                           VMKernel.num_sp++;
-                        }
-                        VMKernel.swapFile.write(spn * Processor.pageSize, Machine.processor().getMemory(), Processor.makeAddress(VMKernel.IPT[toEvict].entry.ppn, 0), Processor.pageSize);
-                                      
-                        VMKernel.IPT[toEvict].entry.vpn = spn;
-                      //swap out
-                      }
-                      VMKernel.IPT[toEvict].process.used_pages.remove(new Integer(VMKernel.IPT[toEvict].entry.ppn));
-                      VMKernel.IPT[toEvict].entry.valid = false;
-                      ppn = VMKernel.IPT[toEvict].entry.ppn;
-                    }
-                    used_pages.add(ppn);
-                    if(!pageTable[vpn].dirty){
-                      // fill with 000000???????????????
-                      byte[] data = new byte[Processor.pageSize];
-                      for(int j = 0; j < data.length; j++){
-                        data[j] = 0;
-                      }
-                      System.arraycopy(data, 0, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Processor.pageSize);
-                      pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, false);
-                    }
-                    else{
-                      // swap in
-                      VMKernel.swapFile.read(pageTable[vpn].vpn * Processor.pageSize, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), Processor.pageSize);
-                      VMKernel.freeSwapPages.add(pageTable[vpn].vpn);
-                      pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, true);
-                    }
-                    // fill with 00000?????
-                    VMKernel.IPT[ppn].process = this;
-                    VMKernel.IPT[ppn].entry = pageTable[vpn];
-                  }
-                } 
-           
-         //  System.out.println("process id: " + this.process_id); 
-         //for(int i = 0; i < used_pages.size(); i++){
-           //System.out.print(used_pages.get(i));
-         // }
-         UserKernel.mutex.release();
- 
-        }
+		UserKernel.mutex.acquire();
+		if (cluster != null) {
+			VMKernel.swap.readsInFlight--;
+
+			// only the latest cluster is kept
+			Arrays.fill(readAhead, null);
+			for (int i = first; i <= last; i++) {
+				if (i != vpn && isSwappedOut(i))
+					readAhead[i] = Arrays.copyOfRange(cluster, (i - first)
+							* pageSize, (i - first + 1) * pageSize);
+			}
+		}
+		pageTable[vpn] = entry;
+		VMKernel.IPT[ppn].process = this;
+		VMKernel.IPT[ppn].entry = entry;
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+		VMKernel.unpin(ppn);
+		UserKernel.mutex.release();
+	}
+
+	/**
+	 * Take a free frame, or evict a page if there is none, and wake the page
+	 * daemon to clean the next victims. If every frame is pinned, or
+	 * another fault is writing a page out, wait until that changes. Must be
+	 * called with <tt>UserKernel.mutex</tt> held, which is released while
+	 * waiting and while an evicted page is written out.
+	 * 
+	 * @return the physical page number of the frame, which is pinned.
+	 */
+	private int allocateFrame() {
+		while (UserKernel.free_pages.isEmpty()
+				&& (VMKernel.pinCount == Machine.processor().getNumPhysPages()
+						|| VMKernel.swapOutInProgress))
+			VMKernel.pagingDone.sleep();
+
+		int ppn;
+		if (!UserKernel.free_pages.isEmpty()) {
+			ppn = UserKernel.free_pages.removeLast();
+			VMKernel.pin(ppn);
+		}
+		else {
+			ppn = evictFrame();
+		}
+
+		// forget the evicted page
+		VMKernel.IPT[ppn].process = null;
+		VMKernel.IPT[ppn].entry = null;
+
+		VMKernel.pageDaemon.check();
+		return ppn;
+	}
+
+	/**
+	 * Evict the page in the frame chosen by
+	 * <tt>VMKernel.replacementPolicy</tt>, swapping it out if it is dirty.
+	 * The frame is pinned first, since <tt>UserKernel.mutex</tt> is released
+	 * while the page is written. Must be called with
+	 * <tt>UserKernel.mutex</tt> held, while some frame is evictable and no
+	 * other page is being written out.
+	 * 
+	 * @return the physical page number of the frame, which is now unused and
+	 * pinned.
+	 */
+	private static int evictFrame() {
+		Lib.assertTrue(!VMKernel.swapOutInProgress);
+
+		int toEvict = VMKernel.replacementPolicy.pickVictim();
+		Lib.assertTrue(VMKernel.isEvictable(toEvict));
+
+		// invalidate the page first, since its process may run while the
+		// page is written out
+		VMProcess owner = VMKernel.IPT[toEvict].process;
+		TranslationEntry evicted = VMKernel.IPT[toEvict].entry;
+		evicted.valid = false;
+		owner.used_pages.remove(Integer.valueOf(toEvict));
+		VMKernel.pin(toEvict);
+
+		if (evicted.dirty)
+			owner.swapOut(evicted.vpn);
+
+		return toEvict;
+	}
+
+	/**
+	 * Write a dirty resident page to swap and mark it clean, leaving it
+	 * mapped, so that evicting it later needs no write. Does nothing if this
+	 * process is exiting. Called by the page daemon with
+	 * <tt>UserKernel.mutex</tt> held, which is released during the write; the
+	 * frame is pinned, and the page marked as <tt>writing</tt>, until it
+	 * finishes.
+	 * 
+	 * @param vpn a dirty page in an evictable frame.
+	 * @return <tt>true</tt> if the page was written.
+	 */
+	boolean cleanPage(int vpn) {
+		if (exiting)
+			return false;
+
+		TranslationEntry entry = pageTable[vpn];
+		int ppn = entry.ppn;
+		Lib.assertTrue(VMKernel.isEvictable(ppn) && entry.dirty);
+		VMKernel.pin(ppn);
+
+		// this process may run during the write, so the page is copied and
+		// cleaned first; a store in the meantime dirties it again
+		byte[] buf = Arrays.copyOfRange(Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0),
+				Processor.makeAddress(ppn, 0) + pageSize);
+		entry.dirty = false;
+		swapped[vpn] = true;
+		writing[vpn] = true;
+
+		int spn = swapSlot(vpn);
+		numWriting++;
+		VMKernel.swap.writesInFlight++;
+		UserKernel.mutex.release();
+
+		VMKernel.swap.write(spn, buf, 0, 1);
+
+		UserKernel.mutex.acquire();
+		VMKernel.swap.writesInFlight--;
+		numWriting--;
+		writing[vpn] = false;
+		Machine.autoGrader().swapPagesWritten(1);
+		VMKernel.numSwapOps++;
+		VMKernel.numCleaned++;
+		VMKernel.unpin(ppn);
+		return true;
+	}
+
+	/**
+	 * Write an evicted page to swap. Only that page is written: cleaning its
+	 * resident neighbors in the same write saved operations, but many of them
+	 * were dirtied again before they were evicted and so were written twice.
+	 * 
+	 * <p>
+	 * Must be called with <tt>UserKernel.mutex</tt> held. The lock is released
+	 * during the write, and the page is marked as <tt>writing</tt> until it
+	 * finishes, so that a fault on it waits rather than reading its slot too
+	 * soon. Only one fault writes at a time, as when the write was
+	 * made under the lock: overlapping writes each keep a frame pinned, and
+	 * with few frames processes can end up evicting each other's pages
+	 * forever.
+	 * 
+	 * @param vpn the page being evicted, already marked invalid, whose frame
+	 * is pinned.
+	 */
+	private void swapOut(int vpn) {
+		pageTable[vpn].dirty = false;
+		swapped[vpn] = true;
+		writing[vpn] = true;
+
+		int spn = swapSlot(vpn);
+		numWriting++;
+		VMKernel.swap.writesInFlight++;
+		VMKernel.swapOutInProgress = true;
+		UserKernel.mutex.release();
+
+		// the frame is pinned and the page invalid, so nothing can change it
+		VMKernel.swap.write(spn, Machine.processor().getMemory(),
+				Processor.makeAddress(pageTable[vpn].ppn, 0), 1);
+
+		UserKernel.mutex.acquire();
+		VMKernel.swap.writesInFlight--;
+		VMKernel.swapOutInProgress = false;
+		numWriting--;
+		writing[vpn] = false;
+		VMKernel.pagingDone.wakeAll();
+
+		Machine.autoGrader().swapPagesWritten(1);
+		VMKernel.numSwapOps++;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the page is not resident and its contents are in
+	 * swap, and not still being written there.
+	 */
+	private boolean isSwappedOut(int vpn) {
+		return !pageTable[vpn].valid && swapped[vpn] && !writing[vpn];
+	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
@@ -478,12 +743,48 @@ public class VMProcess extends UserProcess {
                 case Processor.exceptionPageFault:
                         handlePageFault(processor.readRegister(Processor.regBadVAddr)); // need to return anything??????????
                         break;
+                case Processor.exceptionTLBMiss:
+                        handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+                        break;
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * The COFF section each page is loaded from on its first fault, or
+	 * <tt>null</tt> for the stack and argument pages.
+	 */
+	private CoffSection[] pageSection;
+
+	/** The first slot of this process's run of swap slots, or -1. */
+	private int swapBase = -1;
+
+	/**
+	 * Whether each page's slot holds its current contents, or did when the
+	 * page was last written to swap, if it has been dirtied since.
+	 */
+	private boolean[] swapped;
+
+	/**
+	 * Whether each page is being written to swap by <tt>swapOut()</tt> or
+	 * <tt>cleanPage()</tt>, with <tt>UserKernel.mutex</tt> released.
+	 */
+	private boolean[] writing;
+
+	/**
+	 * The number of writes of this process's pages to swap in progress, by
+	 * <tt>swapOut()</tt> or <tt>cleanPage()</tt>.
+	 */
+	private int numWriting = 0;
+
+	/** Set once this process starts freeing its frames. */
+	private boolean exiting = false;
+
+	/** Swapped-out pages read from swap along with a faulting neighbor. */
+	private byte[][] readAhead;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -0,0 +1,132 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * The WSClock algorithm. Like the clock, the hand clears used bits as it
+ * sweeps, but it also remembers when each page was last seen in use, and a
+ * page not used for more than <tt>WSClockPolicy.tau</tt> page faults is out
+ * of its process's working set.
+ *
+ * <p>
+ * Evicting a dirty page costs a swap write, so the hand skips dirty pages on
+ * its first revolution and evicts the first clean page outside the working
+ * set. If a full revolution finds no such clean page, the least recently
+ * used page is evicted instead, clean before dirty; as in WSClock on a real
+ * disk, the page daemon writes such dirty pages ahead of time, so that they
+ * can be evicted without waiting for the write.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+		tau = Config.getInteger("WSClockPolicy.tau", numPhysPages);
+		lastUse = new long[numPhysPages];
+
+		Lib.assertTrue(tau >= 0);
+	}
+
+	public void pageLoaded(int ppn) {
+		lastUse[ppn] = ++time;
+	}
+
+	public int pickVictim() {
+		int oldestClean = -1, oldestDirty = -1;
+
+		for (int i = 0; i < numPhysPages; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numPhysPages;
+
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+
+			TranslationEntry entry = VMKernel.IPT[ppn].entry;
+			if (entry.used) {
+				entry.used = false;
+				lastUse[ppn] = time;
+			}
+			else if (!entry.dirty) {
+				if (time - lastUse[ppn] > tau)
+					return ppn;
+				if (oldestClean == -1 || lastUse[ppn] < lastUse[oldestClean])
+					oldestClean = ppn;
+			}
+			else {
+				if (oldestDirty == -1 || lastUse[ppn] < lastUse[oldestDirty])
+					oldestDirty = ppn;
+			}
+		}
+
+		int ppn = (oldestClean != -1) ? oldestClean : oldestDirty;
+
+		// every unpinned page was in use; their used bits are clear now
+		if (ppn == -1)
+			return pickVictim();
+
+		hand = (ppn + 1) % numPhysPages;
+		return ppn;
+	}
+
+	/**
+	 * The hand will evict the clean pages outside the working set in the
+	 * order it reaches them, then the least recently used pages, clean
+	 * before dirty.
+	 */
+	public int[] nextVictims(int max) {
+		int[] victims = new int[max];
+		int count = 0;
+		boolean[] chosen = new boolean[numPhysPages];
+
+		for (int i = 0; i < numPhysPages && count < max; i++) {
+			int ppn = (hand + i) % numPhysPages;
+			if (isCandidate(ppn) && !VMKernel.IPT[ppn].entry.dirty
+					&& time - lastUse[ppn] > tau) {
+				victims[count++] = ppn;
+				chosen[ppn] = true;
+			}
+		}
+
+		while (count < max) {
+			int victim = -1;
+			for (int ppn = 0; ppn < numPhysPages; ppn++) {
+				if (isCandidate(ppn) && !chosen[ppn]
+						&& (victim == -1 || isOlder(ppn, victim)))
+					victim = ppn;
+			}
+			if (victim == -1)
+				break;
+
+			victims[count++] = victim;
+			chosen[victim] = true;
+		}
+
+		return Arrays.copyOf(victims, count);
+	}
+
+	private static boolean isCandidate(int ppn) {
+		return VMKernel.isEvictable(ppn) && !VMKernel.IPT[ppn].entry.used;
+	}
+
+	/** Whether a page would be evicted before another, clean before dirty. */
+	private boolean isOlder(int ppn, int other) {
+		boolean dirty = VMKernel.IPT[ppn].entry.dirty;
+		if (dirty != VMKernel.IPT[other].entry.dirty)
+			return !dirty;
+		return lastUse[ppn] < lastUse[other];
+	}
+
+	private int numPhysPages;
+
+	private int tau;
+
+	/** The number of pages loaded so far; the virtual time of the policy. */
+	private long time = 0;
+
+	private long[] lastUse;
+
+	private int hand = 0;
+}